@@ -0,0 +1,134 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Decides on the acceptor thread, before any handler or thread exists, whether a new connection
+// is let in: the server must be below chat.max.connections and the remote address must have a token
+// left in its bucket (chat.accept.rate.per.ip, refilled per second, up to chat.accept.burst.per.ip);
+// both limits are off unless configured.
+// A refused v2 client gets a REJECT frame with the reason and is closed; anything else is closed
+// without a word. Refusals are counted and summarized in the log instead of logging each one, so
+// a reconnect storm cannot flood it
+final class AdmissionControl {
+
+    private static final Logger logger = Logger.getLogger(AdmissionControl.class.getName());
+
+    // How long a refused client has to send its first frame, which says whether it reads REJECT
+    private static final int REJECT_READ_MS = 250;
+    // Refused sockets waiting for that frame; beyond this they are closed at once
+    private static final int REJECT_QUEUE = 256;
+
+    private final ChatServer server;
+    private final int maxConnections;
+    private final double ratePerIp;
+    private final double burstPerIp;
+    private final boolean limitLoopback;
+    private final ConcurrentHashMap<InetAddress, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong rejectedSinceReport = new AtomicLong();
+    // Reads refused clients' first frames off the acceptor threads
+    private final ExecutorService rejecter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(REJECT_QUEUE), task -> {
+                Thread thread = new Thread(task, "admission-reject");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    AdmissionControl(ChatServer server, int maxConnections, double ratePerIp, double burstPerIp, boolean limitLoopback) {
+        this.server = server;
+        this.maxConnections = maxConnections;
+        this.ratePerIp = ratePerIp;
+        this.burstPerIp = burstPerIp;
+        this.limitLoopback = limitLoopback;
+    }
+
+    // The limits configured by -Dchat.max.connections and -Dchat.accept.*
+    static AdmissionControl fromConfig(ChatServer server) {
+        return new AdmissionControl(server, ServerConfig.MAX_CONNECTIONS, ServerConfig.ACCEPT_RATE_PER_IP,
+                ServerConfig.ACCEPT_BURST_PER_IP, ServerConfig.ACCEPT_LIMIT_LOOPBACK);
+    }
+
+    // Returns null if the connection is let in, otherwise the reason it is refused
+    String admit(InetAddress address) {
+        if (maxConnections > 0 && server.getClientCount() >= maxConnections) {
+            return "server full (" + maxConnections + " connections)";
+        }
+        if (ratePerIp > 0 && (limitLoopback || !address.isLoopbackAddress())) {
+            long now = System.nanoTime();
+            TokenBucket bucket = buckets.computeIfAbsent(address, a -> new TokenBucket(ratePerIp, burstPerIp, now));
+            if (!bucket.tryAcquire(now)) {
+                long retryMillis = Math.max(1, bucket.nanosUntilAvailable(now) / 1_000_000);
+                return "too many connections from " + address.getHostAddress() + ", retry in " + retryMillis + " ms";
+            }
+        }
+        return null;
+    }
+
+    // Refuses a connection. A REJECT frame only makes sense to a v2 client (a legacy client would
+    // read it as a writeUTF length), so the client's first frame is read before answering, on a
+    // separate thread and for at most REJECT_READ_MS. The socket must be in blocking mode. A TLS
+    // client cannot read a plain frame and a handshake would spend the very CPU the limits
+    // protect, so under TLS, or when too many refusals are already waiting, it is just closed
+    void reject(Socket socket, String reason) {
+        rejectedSinceReport.incrementAndGet();
+        server.getMetrics().rejected.increment();
+        if (server.getTls() != null) {
+            closeQuietly(socket);
+            return;
+        }
+        try {
+            rejecter.execute(() -> answerAndClose(socket, reason));
+        } catch (RejectedExecutionException e) {
+            closeQuietly(socket);
+        }
+    }
+
+    // Sends a v2 client the reason and closes the socket as soon as the frame is written; its
+    // hello has been read, so the close does not reset the connection before the client reads it
+    private void answerAndClose(Socket socket, String reason) {
+        try {
+            socket.setSoTimeout(REJECT_READ_MS);
+            String first = new DataInputStream(socket.getInputStream()).readUTF();
+            if (WireProtocol.isHello(first)) {
+                ByteBuffer frame = WireProtocol.encode(new ChatMessage(WireProtocol.REJECT, 0, null, reason), 0);
+                OutputStream out = socket.getOutputStream();
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                out.flush();
+            }
+        } catch (IOException e) {
+            logger.fine("Refused client sent no hello: " + e.getMessage());
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    // Logs how many connections were refused since the last call and forgets idle addresses
+    // (scheduler thread)
+    void maintain() {
+        long rejected = rejectedSinceReport.getAndSet(0);
+        if (rejected > 0) {
+            server.log("Refused " + rejected + " connections (limits: " + maxConnections + " connections, "
+                    + ratePerIp + "/s per address)");
+        }
+        long now = System.nanoTime();
+        buckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.fine("Error closing refused socket: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+// Finds the first matching auto-response rule in one pass over the message (Aho-Corasick).
+// Rule file format, one rule per line, earlier rules win:
+//   hi|hello = Hello {name}!
+//   # comment
+public class AutoResponder {
+
+    private static final int ALPHABET = 128;
+    private static final int NO_RULE = Integer.MAX_VALUE;
+
+    private final String[] responses;
+    // Full DFA: delta[state * ALPHABET + c] is the next state, failure links already folded in
+    private final int[] delta;
+    // Lowest rule index whose keyword ends in this state (directly or through failure links)
+    private final int[] output;
+
+    private AutoResponder(List<String[]> keywords, List<String> responses) {
+        this.responses = responses.toArray(new String[0]);
+
+        List<int[]> gotoTable = new ArrayList<>();
+        List<Integer> outputs = new ArrayList<>();
+        gotoTable.add(newState());
+        outputs.add(NO_RULE);
+
+        for (int rule = 0; rule < keywords.size(); rule++) {
+            for (String keyword : keywords.get(rule)) {
+                int state = 0;
+                for (int i = 0; i < keyword.length(); i++) {
+                    int c = lower(keyword.charAt(i));
+                    if (gotoTable.get(state)[c] < 0) {
+                        gotoTable.get(state)[c] = gotoTable.size();
+                        gotoTable.add(newState());
+                        outputs.add(NO_RULE);
+                    }
+                    state = gotoTable.get(state)[c];
+                }
+                outputs.set(state, Math.min(outputs.get(state), rule));
+            }
+        }
+
+        int states = gotoTable.size();
+        delta = new int[states * ALPHABET];
+        output = new int[states];
+        int[] failure = new int[states];
+        for (int s = 0; s < states; s++) {
+            output[s] = outputs.get(s);
+        }
+
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET; c++) {
+            int next = gotoTable.get(0)[c];
+            if (next < 0) {
+                delta[c] = 0;
+            } else {
+                delta[c] = next;
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            output[state] = Math.min(output[state], output[failure[state]]);
+            for (int c = 0; c < ALPHABET; c++) {
+                int next = gotoTable.get(state)[c];
+                if (next < 0) {
+                    delta[state * ALPHABET + c] = delta[failure[state] * ALPHABET + c];
+                } else {
+                    delta[state * ALPHABET + c] = next;
+                    failure[next] = delta[failure[state] * ALPHABET + c];
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    private static int[] newState() {
+        int[] transitions = new int[ALPHABET];
+        Arrays.fill(transitions, -1);
+        return transitions;
+    }
+
+    // ASCII lower-casing without touching the default locale
+    private static int lower(char c) {
+        if (c >= ALPHABET) {
+            throw new IllegalArgumentException("Keywords must be ASCII: " + c);
+        }
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    // Returns the response of the earliest rule with a keyword in the message, or null
+    public String respond(String message, String clientName) {
+        int state = 0;
+        int best = NO_RULE;
+        for (int i = 0; i < message.length() && best > 0; i++) {
+            char c = message.charAt(i);
+            if (c >= ALPHABET) {
+                state = 0;
+                continue;
+            }
+            state = delta[state * ALPHABET + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c)];
+            if (output[state] < best) {
+                best = output[state];
+            }
+        }
+        if (best == NO_RULE) {
+            return null;
+        }
+        String response = responses[best];
+        return response.contains("{name}") ? response.replace("{name}", clientName) : response;
+    }
+
+    // The built-in rules the server has always answered
+    public static AutoResponder defaults() {
+        return parse(List.of(
+                "hi|hello = Hello {name}!",
+                "how are you = I'm a server, always running!",
+                "thanks|thank you = You're welcome."));
+    }
+
+    // Loads rules from a file (see the class comment for the format)
+    public static AutoResponder load(Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    // Parses rule lines; blank lines and lines starting with # are ignored
+    static AutoResponder parse(List<String> lines) {
+        List<String[]> keywords = new ArrayList<>();
+        List<String> responses = new ArrayList<>();
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            int separator = trimmed.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected 'keyword|keyword = response': " + line);
+            }
+            List<String> words = new ArrayList<>();
+            for (String keyword : trimmed.substring(0, separator).split("\\|")) {
+                if (!keyword.trim().isEmpty()) {
+                    words.add(keyword.trim());
+                }
+            }
+            keywords.add(words.toArray(new String[0]));
+            responses.add(trimmed.substring(separator + 1).trim());
+        }
+        return new AutoResponder(keywords, responses);
+    }
+}
@@ -0,0 +1,39 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// Reconnect delays: exponential backoff with full jitter. The first retry after a success is
+// immediate (most drops are brief); failure n after that waits a uniformly random time between
+// 0 and min(max, base * 2^(n-1)). The randomness spreads out clients that lost the same server at
+// the same moment, so they do not all come back in lockstep when it restarts. Not thread-safe:
+// each reconnecting thread owns one
+final class Backoff {
+
+    private final long baseMillis;
+    private final long maxMillis;
+    // Failed attempts since the last success
+    private int failures;
+
+    Backoff(long baseMillis, long maxMillis) {
+        this.baseMillis = Math.max(1, baseMillis);
+        this.maxMillis = Math.max(this.baseMillis, maxMillis);
+    }
+
+    // Records a failed attempt and returns how long to wait before the next one
+    long nextDelayMillis() {
+        int n = failures++;
+        if (n == 0) {
+            return 0;
+        }
+        long ceiling = Math.min(maxMillis, baseMillis << Math.min(n - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    // Failed attempts since the last reset
+    int failures() {
+        return failures;
+    }
+
+    // Called after a successful attempt: the next failure retries immediately again
+    void reset() {
+        failures = 0;
+    }
+}
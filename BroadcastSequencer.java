@@ -0,0 +1,47 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Runs journaled broadcasts' fan-outs in the order they were numbered without a lock around them.
+// A sender takes a ticket while it numbers its message and later posts the fan-out under it; the
+// thread that finds the next ticket ready runs it and any ready ones after it, while the others
+// just leave theirs behind. A fan-out may so run on another sender's thread, but never before an
+// earlier one, so every client queue gets broadcasts in seq order
+final class BroadcastSequencer {
+
+    private static final Logger logger = Logger.getLogger(BroadcastSequencer.class.getName());
+
+    private final ConcurrentHashMap<Long, Runnable> posted = new ConcurrentHashMap<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    // Guarded by the caller's numbering lock
+    private long issued;
+    // Next ticket to run; written only by the thread holding running
+    private volatile long next;
+
+    // Next ticket; must be taken under the same lock that assigns the message's seq
+    long ticket() {
+        return issued++;
+    }
+
+    // Runs fanOut once every earlier ticket has run, on this thread or the one running those
+    void post(long ticket, Runnable fanOut) {
+        posted.put(ticket, fanOut);
+        // Whoever stops running rechecks, so a fan-out posted meanwhile is not left behind
+        while (posted.containsKey(next) && running.compareAndSet(false, true)) {
+            try {
+                Runnable ready;
+                while ((ready = posted.remove(next)) != null) {
+                    next++;
+                    try {
+                        ready.run();
+                    } catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "Broadcast fan-out failed", e);
+                    }
+                }
+            } finally {
+                running.set(false);
+            }
+        }
+    }
+}
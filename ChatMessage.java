@@ -0,0 +1,57 @@
+// One chat event as the server sees it, independent of the wire format it travels in.
+// Legacy clients get legacyText() as a writeUTF string; v2 clients get a typed WireProtocol frame
+public final class ChatMessage {
+
+    public final byte type;
+    public final long seq;
+    // Author of a CHAT message; null for everything else and for client-sent chat
+    public final String sender;
+    // Chat text, notice text, or the client name for JOIN / LEAVE
+    public final String text;
+
+    public ChatMessage(byte type, long seq, String sender, String text) {
+        this.type = type;
+        this.seq = seq;
+        this.sender = sender;
+        this.text = text;
+    }
+
+    // A chat line written by a client
+    public static ChatMessage chat(String sender, String text) {
+        return new ChatMessage(WireProtocol.CHAT, 0, sender, text);
+    }
+
+    // A notice from the server (auto-responses, blocked-message reasons, admin messages)
+    public static ChatMessage system(String text) {
+        return new ChatMessage(WireProtocol.SYSTEM, 0, null, text);
+    }
+
+    public static ChatMessage joined(String name) {
+        return new ChatMessage(WireProtocol.JOIN, 0, null, name);
+    }
+
+    public static ChatMessage left(String name) {
+        return new ChatMessage(WireProtocol.LEAVE, 0, null, name);
+    }
+
+    // The text a legacy (writeUTF) client has always received for this event
+    public String legacyText() {
+        switch (type) {
+            case WireProtocol.CHAT:
+                return sender == null ? text : sender + ": " + text;
+            case WireProtocol.JOIN:
+                return "Server: " + text + " has joined the chat";
+            case WireProtocol.LEAVE:
+                return "Server: " + text + " has left the chat";
+            case WireProtocol.EXIT:
+                return "exit";
+            default:
+                return "Server: " + text;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return legacyText();
+    }
+}
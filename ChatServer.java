@@ -0,0 +1,715 @@
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+
+// Headless chat server core: accepts clients (blocking or NIO), runs the message pipeline and
+// broadcasts. It has no Swing dependency; the GUI (Server1) only observes it through the LogSink.
+//
+//   java -cp target/client-server-chat-1.0-SNAPSHOT.jar ChatServer
+public class ChatServer {
+
+    private static final Logger logger = Logger.getLogger(ChatServer.class.getName());
+
+    // How often refused connections are summarized and idle per-address buckets dropped
+    private static final long ADMISSION_MAINTENANCE_MS = 5000;
+    // How often a server with -Dchat.handoff.file looks for sessions left by a draining predecessor
+    private static final long HANDOFF_POLL_MS = 250;
+
+    private final int port;
+    private final LogSink log;
+    // Every connected client; broadcasts iterate a stable snapshot without taking any lock
+    private final SubscriberSet<ServerClient1handler> clients = new SubscriberSet<>();
+    // Room membership; chat goes to the sender's room only
+    private final RoomRegistry rooms = new RoomRegistry();
+    // Sessions of v2 clients, held for a while after their connection drops
+    private final SessionRegistry sessions = new SessionRegistry(this, ServerConfig.SESSION_GRACE_MS);
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private ScheduledFuture<?> metricsSampler;
+    // Server-wide inbound message limit; null when -Dchat.flood.global.rate is unset
+    private final TokenBucket floodLimit = ServerConfig.FLOOD_GLOBAL_RATE > 0
+            ? new TokenBucket(ServerConfig.FLOOD_GLOBAL_RATE, ServerConfig.FLOOD_GLOBAL_BURST, System.nanoTime()) : null;
+    // Connection limits checked on the acceptor thread
+    private final AdmissionControl admission = AdmissionControl.fromConfig(this);
+    private ScheduledFuture<?> admissionMaintenance;
+    private final AtomicBoolean isRunning = new AtomicBoolean(false);
+    // Set from drain() until the next start: no longer accepting, clients are being sent away
+    private volatile boolean draining;
+    private ScheduledFuture<?> handoffPoll;
+    // Sequence number stamped on every v2 frame the server sends
+    private final AtomicLong messageSeq = new AtomicLong();
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private NioServerEngine nioEngine;
+    // TLS for client connections (null for plain TCP), and the threads doing the NIO handshake work
+    private volatile SSLContext tls;
+    private ExecutorService handshakeExecutor;
+    // Reads journal history for clients of the NIO event loops; null without a journal
+    private ExecutorService replayExecutor;
+    // Broadcast history for reconnecting clients; null when -Dchat.journal.dir is unset
+    private volatile MessageJournal journal;
+    // Orders the fan-outs of journaled broadcasts by seq
+    private final BroadcastSequencer sequencer = new BroadcastSequencer();
+    // Relay to the other cluster nodes; null when -Dchat.cluster.port is unset
+    private volatile ClusterNode cluster;
+    private ExecutorService clientExecutor;
+    private ExecutorService writerExecutor;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "server-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Inbound pipeline stages, run in order on every chat message
+    private final List<MessageFilter> filters = new CopyOnWriteArrayList<>(List.of(new SymbolFilter()));
+    private final AutoResponder autoResponder = loadAutoResponder();
+
+    // Creates a server for the configured port and log
+    public ChatServer() {
+        this(ServerConfig.PORT, LogSink.fromConfig());
+    }
+
+    // Creates a server for the given port (0 picks a free one) writing to the given log
+    public ChatServer(int port, LogSink log) {
+        this(port, log, null);
+    }
+
+    // Creates a server speaking TLS with the given context; with null, -Dchat.tls.keystore decides
+    public ChatServer(int port, LogSink log, SSLContext tls) {
+        this.port = port;
+        this.log = log;
+        this.tls = tls;
+    }
+
+    // Loads auto-response rules from -Dchat.autoresponse.rules, or the built-in rules
+    private static AutoResponder loadAutoResponder() {
+        if (ServerConfig.AUTORESPONSE_RULES == null) {
+            return AutoResponder.defaults();
+        }
+        try {
+            return AutoResponder.load(Paths.get(ServerConfig.AUTORESPONSE_RULES));
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warning("Could not load auto-response rules: " + e.getMessage() + ", using defaults");
+            return AutoResponder.defaults();
+        }
+    }
+
+    // Binds the port and starts accepting clients; throws if the port cannot be bound
+    public synchronized void start() throws IOException {
+        if (!isRunning.compareAndSet(false, true)) {
+            log("Server is already running");
+            return;
+        }
+
+        draining = false;
+        try {
+            if (tls == null) {
+                tls = Tls.serverContextFromConfig();
+            }
+            journal = MessageJournal.fromConfig();
+            if (journal != null) {
+                messageSeq.set(Math.max(messageSeq.get(), journal.lastSeq()));
+                log("Message journal in " + ServerConfig.JOURNAL_DIR + " (last seq " + journal.lastSeq() + ")");
+            }
+            if (ServerConfig.HANDOFF_FILE != null && sessions.isEnabled()) {
+                handoffPoll = scheduler.scheduleWithFixedDelay(this::takeOverSessions, 0, HANDOFF_POLL_MS,
+                        TimeUnit.MILLISECONDS);
+            }
+            metrics.start();
+            metricsSampler = scheduler.scheduleAtFixedRate(metrics::sample, ServerConfig.METRICS_INTERVAL_MS,
+                    ServerConfig.METRICS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            admissionMaintenance = scheduler.scheduleAtFixedRate(admission::maintain, ADMISSION_MAINTENANCE_MS,
+                    ADMISSION_MAINTENANCE_MS, TimeUnit.MILLISECONDS);
+            cluster = ClusterNode.fromConfig(this);
+            if (cluster != null) {
+                cluster.start();
+                rooms.setListener(cluster);
+            }
+            String security = tls != null ? ", TLS" : "";
+            if (ServerConfig.isNioMode()) {
+                if (tls != null) {
+                    handshakeExecutor = Executors.newFixedThreadPool(Math.max(1, ServerConfig.TLS_HANDSHAKE_THREADS), task -> {
+                        Thread thread = new Thread(task, "tls-handshake");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                if (journal != null) {
+                    replayExecutor = Executors.newFixedThreadPool(Math.max(1, ServerConfig.JOURNAL_REPLAY_THREADS), task -> {
+                        Thread thread = new Thread(task, "journal-replay");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                nioEngine = new NioServerEngine(this, port, ServerConfig.IO_THREADS);
+                nioEngine.start();
+                log("Server started on port " + getLocalPort() + " (NIO, " + ServerConfig.IO_THREADS + " event loops, "
+                        + Math.max(1, ServerConfig.ACCEPT_THREADS) + " acceptors on " + nioEngine.getAcceptorSockets() + " sockets"
+                        + security + ")");
+                return;
+            }
+
+            serverSocket = new ServerSocket();
+            if (ServerConfig.HANDOFF_FILE != null
+                    && serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverSocket.bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+            clientExecutor = ClientExecutors.create(ServerConfig.EXECUTOR, ServerConfig.POOL_SIZE);
+            writerExecutor = ClientExecutors.createWriters(ServerConfig.EXECUTOR);
+            acceptThread = new Thread(this::acceptLoop, "server-acceptor");
+            acceptThread.start();
+            log("Server started on port " + getLocalPort() + " (" + ServerConfig.EXECUTOR + " threads" + security + ")");
+        } catch (IOException e) {
+            isRunning.set(false);
+            stopHandoffPoll();
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+                serverSocket = null;
+            }
+            if (nioEngine != null) {
+                nioEngine.stop();
+                nioEngine = null;
+            }
+            stopHandshakeExecutor();
+            stopCluster();
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            stopMetrics();
+            throw e;
+        }
+    }
+
+    // Accepts clients and runs one handler per client on the client executor (blocking mode)
+    private void acceptLoop() {
+        try {
+            while (!serverSocket.isClosed() && isRunning.get()) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    String refused = admission.admit(clientSocket.getInetAddress());
+                    if (refused != null) {
+                        admission.reject(clientSocket, refused);
+                        continue;
+                    }
+                    logConnection(clientSocket);
+                    metrics.accepted.increment();
+                    if (tls != null) {
+                        clientSocket = Tls.serverSocket(tls, clientSocket);
+                    }
+
+                    ServerClient1handler clientHandler = new ServerClient1handler(clientSocket, this);
+                    clients.add(clientHandler);
+                    clientExecutor.execute(clientHandler);
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed() && isRunning.get()) {
+                        log("Error accepting client: " + e.getMessage());
+                    }
+                }
+            }
+        } finally {
+            // A drain closes the socket on purpose; the server keeps running until it stops
+            if (!draining) {
+                isRunning.set(false);
+            }
+        }
+    }
+
+    // Logs where a newly accepted client connected from (plain concatenation: this runs on the
+    // acceptor thread for every connection)
+    void logConnection(Socket clientSocket) {
+        log("Client connected from: " + clientSocket.getInetAddress().getHostAddress() + " (Port: " + clientSocket.getPort()
+                + ") → Server: " + clientSocket.getLocalAddress().getHostAddress() + " (Port: " + clientSocket.getLocalPort() + ")");
+    }
+
+    // Limit shared by every client's inbound messages, or null
+    TokenBucket getFloodLimit() {
+        return floodLimit;
+    }
+
+    // TLS context for client connections, or null for plain TCP
+    SSLContext getTls() {
+        return tls;
+    }
+
+    // Runs TLS handshake work for the NIO event loops
+    ExecutorService getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    // Collects journal history for clients of the NIO event loops
+    ExecutorService getReplayExecutor() {
+        return replayExecutor;
+    }
+
+    // Connection limits, consulted by the acceptors
+    AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    // Registers a client accepted by the NIO engine
+    void addClient(ServerClient1handler client) {
+        metrics.accepted.increment();
+        clients.add(client);
+    }
+
+    // Graceful stop for a restart: stops accepting, leaves the sessions for the next process
+    // (-Dchat.handoff.file), then sends every client a RESTART notice behind whatever is already
+    // queued for it. The reconnect delays in the notices are staggered so the clients do not all
+    // come back at once. Each connection closes once its queue has flushed; after
+    // chat.drain.timeout.ms the rest are cut by stop()
+    public void drain() {
+        List<ServerClient1handler> connected = new ArrayList<>();
+        synchronized (this) {
+            if (!isRunning.get() || draining) {
+                log(draining ? "Server is already draining" : "Server is not running");
+                return;
+            }
+            draining = true;
+            stopHandoffPoll();
+            stopAccepting();
+            handOffSessions();
+            clients.forEach(connected::add);
+        }
+
+        long started = System.nanoTime();
+        int count = connected.size();
+        log("Draining " + count + " clients (reconnect in " + ServerConfig.DRAIN_RECONNECT_MIN_MS + "-"
+                + (ServerConfig.DRAIN_RECONNECT_MIN_MS + ServerConfig.DRAIN_RECONNECT_SPREAD_MS) + " ms)");
+        for (int i = 0; i < count; i++) {
+            long delay = ServerConfig.DRAIN_RECONNECT_MIN_MS + (long) ServerConfig.DRAIN_RECONNECT_SPREAD_MS * i / count;
+            ServerClient1handler client = connected.get(i);
+            try {
+                client.restart(delay);
+            } catch (IOException e) {
+                logger.warning("Could not send the restart notice to " + client.getClientName() + ": " + e.getMessage());
+            }
+        }
+
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(ServerConfig.DRAIN_TIMEOUT_MS);
+        int open;
+        while ((open = countOpen(connected)) > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        log(open == 0 ? "All clients drained in " + millis + " ms"
+                : open + " clients still open after " + millis + " ms; closing them");
+        stop();
+    }
+
+    // Closes the listening sockets, leaving the connected clients alone
+    private void stopAccepting() {
+        if (nioEngine != null) {
+            nioEngine.stopAccepting();
+            return;
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (acceptThread != null) {
+                acceptThread.join(1000);
+            }
+        } catch (IOException e) {
+            log("Error closing server socket: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int countOpen(List<ServerClient1handler> connected) {
+        int open = 0;
+        for (ServerClient1handler client : connected) {
+            if (client.isOpen()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    // Leaves the sessions and the message seq in -Dchat.handoff.file for the next process
+    private void handOffSessions() {
+        if (ServerConfig.HANDOFF_FILE == null || !sessions.isEnabled()) {
+            return;
+        }
+        try {
+            int saved = sessions.save(Paths.get(ServerConfig.HANDOFF_FILE), messageSeq.get());
+            log("Handed " + saved + " sessions over in " + ServerConfig.HANDOFF_FILE);
+        } catch (IOException e) {
+            log("Session handoff failed: " + e.getMessage());
+        }
+    }
+
+    // Takes over the sessions a draining predecessor left in -Dchat.handoff.file, once. The file is
+    // deleted even when it cannot be read, so a broken one is not retried forever
+    private void takeOverSessions() {
+        Path file = Paths.get(ServerConfig.HANDOFF_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            long lastSeq = sessions.load(file);
+            messageSeq.accumulateAndGet(lastSeq, Math::max);
+        } catch (IOException e) {
+            log("Could not take over sessions from " + file + ": " + e.getMessage());
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log("Could not delete " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void stopHandoffPoll() {
+        if (handoffPoll != null) {
+            handoffPoll.cancel(false);
+            handoffPoll = null;
+        }
+    }
+
+    // Returns true from drain() until the server stops
+    public boolean isDraining() {
+        return draining;
+    }
+
+    // Stops accepting, disconnects all clients and waits for the server threads to finish
+    public synchronized void stop() {
+        if (!isRunning.getAndSet(false) && serverSocket == null && nioEngine == null) {
+            log("Server is not running");
+            return;
+        }
+        stopHandoffPoll();
+
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            log("Error stopping server: " + e.getMessage());
+        }
+
+        List<ServerClient1handler> connected = new ArrayList<>();
+        clients.forEach(connected::add);
+        clients.clear();
+        rooms.clear();
+        for (ServerClient1handler client : connected) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                logger.warning("Error closing client socket: " + e.getMessage());
+            }
+        }
+
+        if (clientExecutor != null) {
+            clientExecutor.shutdown();
+            writerExecutor.shutdown();
+            clientExecutor = null;
+            writerExecutor = null;
+        }
+
+        if (nioEngine != null) {
+            nioEngine.stop();
+            nioEngine = null;
+        }
+        stopHandshakeExecutor();
+
+        if (acceptThread != null) {
+            try {
+                acceptThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            acceptThread = null;
+        }
+        serverSocket = null;
+
+        stopCluster();
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        stopMetrics();
+
+        draining = false;
+        log("Server stopped successfully");
+    }
+
+    private void stopHandshakeExecutor() {
+        if (handshakeExecutor != null) {
+            handshakeExecutor.shutdownNow();
+            handshakeExecutor = null;
+        }
+        if (replayExecutor != null) {
+            replayExecutor.shutdownNow();
+            replayExecutor = null;
+        }
+    }
+
+    private void stopCluster() {
+        if (cluster != null) {
+            rooms.setListener(null);
+            cluster.stop();
+            cluster = null;
+        }
+    }
+
+    private void stopMetrics() {
+        if (metricsSampler != null) {
+            metricsSampler.cancel(false);
+            metricsSampler = null;
+        }
+        if (admissionMaintenance != null) {
+            admissionMaintenance.cancel(false);
+            admissionMaintenance = null;
+        }
+        metrics.stop();
+    }
+
+    // Returns true while the server accepts clients
+    public boolean isRunning() {
+        return isRunning.get();
+    }
+
+    // Port actually bound (useful when started on port 0), or -1 when stopped
+    public synchronized int getLocalPort() {
+        if (nioEngine != null) {
+            return nioEngine.getLocalPort();
+        }
+        return serverSocket != null ? serverSocket.getLocalPort() : -1;
+    }
+
+    // Broadcasts message to all clients except sender (server-wide notices), on every cluster node
+    public void broadcast(ChatMessage message, ServerClient1handler excludeClient) {
+        deliver(clients, "", message, excludeClient);
+        relay("", message);
+    }
+
+    // Broadcasts message to the members of one room except sender, on every cluster node
+    void broadcast(RoomRegistry.Room room, ChatMessage message, ServerClient1handler excludeClient) {
+        deliver(room.members, room.name, message, excludeClient);
+        relay(room.name, message);
+    }
+
+    // Fans out a message another cluster node relayed to the local clients only; it is journaled
+    // even when nobody here is in its room, so a client resuming on this node can still replay it
+    void deliverRelayed(String room, ChatMessage message) {
+        if (room.isEmpty()) {
+            deliver(clients, "", message, null);
+        } else {
+            RoomRegistry.Room local = rooms.get(room);
+            deliver(local != null ? local.members : List.of(), room, message, null);
+        }
+    }
+
+    private void relay(String room, ChatMessage message) {
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.relay(room, message);
+        }
+    }
+
+    // The message is encoded (and compressed) at most once per wire format and the same frame is
+    // enqueued for every recipient using that format; each recipient's own writer does the socket
+    // I/O, so a slow receiver never stalls the sender. Clients still in the handshake are skipped,
+    // as are messages a client already received as history. With a journal the message is
+    // recorded under the room's name ("" for server-wide) before anyone receives it
+    private void deliver(Iterable<ServerClient1handler> recipients, String room, ChatMessage message,
+            ServerClient1handler excludeClient) {
+        long started = System.nanoTime();
+        MessageJournal journal = this.journal;
+        if (journal == null) {
+            fanOut(recipients, message, nextSeq(), null, excludeClient, started);
+            return;
+        }
+        // Only numbering and the append hold the journal's monitor, so records are in seq order.
+        // The sequencer then enqueues in that order too: a client acknowledging the highest seq
+        // it has seen has seen everything before it
+        long seq;
+        long ticket;
+        ByteBuffer v2Frame;
+        synchronized (journal) {
+            seq = nextSeq();
+            v2Frame = WireProtocol.encode(message, seq, false, ServerConfig.DIRECT_FRAMES);
+            try {
+                journal.append(seq, room, v2Frame);
+            } catch (IOException e) {
+                logger.warning("Journal append failed: " + e.getMessage());
+            }
+            ticket = sequencer.ticket();
+        }
+        sequencer.post(ticket, () -> fanOut(recipients, message, seq, v2Frame, excludeClient, started));
+    }
+
+    // Enqueues one numbered message for every recipient and records the broadcast; v2Frame is its
+    // uncompressed frame if already encoded, started when deliver() was called
+    private void fanOut(Iterable<ServerClient1handler> recipients, ChatMessage message, long seq, ByteBuffer v2Frame,
+            ServerClient1handler excludeClient, long started) {
+        int delivered = 0;
+        ByteBuffer legacyFrame = null;
+        ByteBuffer deflatedFrame = null;
+        boolean legacyTooLong = false;
+
+        for (ServerClient1handler client : recipients) {
+            if (client == excludeClient) {
+                continue;
+            }
+            int protocol = client.getProtocol();
+            if (seq <= client.getReplayedThrough()) {
+                continue;
+            }
+            ByteBuffer frame;
+            if (protocol == WireProtocol.VERSION && client.usesDeflate()) {
+                if (deflatedFrame == null) {
+                    deflatedFrame = WireProtocol.encode(message, seq, true, ServerConfig.DIRECT_FRAMES);
+                }
+                frame = deflatedFrame;
+            } else if (protocol == WireProtocol.VERSION) {
+                if (v2Frame == null) {
+                    v2Frame = WireProtocol.encode(message, seq, false, ServerConfig.DIRECT_FRAMES);
+                }
+                frame = v2Frame;
+            } else if (protocol == ServerClient1handler.LEGACY && !legacyTooLong) {
+                if (legacyFrame == null) {
+                    try {
+                        legacyFrame = Frames.encode(message.legacyText(), ServerConfig.DIRECT_FRAMES);
+                    } catch (UTFDataFormatException e) {
+                        logger.warning("Not delivered to legacy clients: " + e.getMessage());
+                        legacyTooLong = true;
+                        continue;
+                    }
+                }
+                frame = legacyFrame;
+            } else {
+                continue;
+            }
+
+            try {
+                client.sendFrame(frame);
+                delivered++;
+            } catch (IOException e) {
+                logger.warning("Broadcast failed to " + client.getClientName() + ": " + e.getMessage());
+                clients.remove(client);
+            }
+        }
+        metrics.broadcasts.increment();
+        metrics.messagesOut.add(delivered);
+        metrics.recordFanout(System.nanoTime() - started);
+    }
+
+    // Next broadcast sequence number
+    long nextSeq() {
+        return messageSeq.incrementAndGet();
+    }
+
+    // Newest broadcast sequence number handed out
+    long lastSeq() {
+        return messageSeq.get();
+    }
+
+    // Inbound filters; add to the list to plug in another stage
+    public List<MessageFilter> getFilters() {
+        return filters;
+    }
+
+    public AutoResponder getAutoResponder() {
+        return autoResponder;
+    }
+
+    // Connected clients (iteration sees a snapshot)
+    Iterable<ServerClient1handler> getClients() {
+        return clients;
+    }
+
+    // Message history, or null when journaling is off
+    MessageJournal getJournal() {
+        return journal;
+    }
+
+    // Link to the other cluster nodes, or null when not clustered
+    ClusterNode getCluster() {
+        return cluster;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Number of connected clients
+    int getClientCount() {
+        return clients.size();
+    }
+
+    SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    // Runs a task once after the given delay on the server's timer thread
+    void schedule(Runnable task, long delayMillis) {
+        scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Executor running the per-client outbound drains in blocking mode
+    ExecutorService getWriterExecutor() {
+        return writerExecutor;
+    }
+
+    // Removes disconnected client from client list
+    public void removeClient(ServerClient1handler client) {
+        clients.remove(client);
+        log(client.getClientName() + " was removed from active clients");
+    }
+
+    // Appends a line to the server log; never blocks
+    public void log(String message) {
+        log.log(message);
+    }
+
+    public LogSink getLog() {
+        return log;
+    }
+
+    // Runs the server without a GUI, logging to stdout (and -Dchat.log.file if set). A SIGTERM
+    // drains the server, so a restart or a takeover by a new process (-Dchat.handoff.file) keeps
+    // the clients' sessions
+    public static void main(String[] args) throws IOException {
+        ChatServer server = new ChatServer();
+        server.getLog().addListener(lines -> lines.forEach(System.out::println));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.drain();
+            server.getLog().close();
+        }, "server-shutdown"));
+        server.start();
+    }
+}
@@ -1,93 +1,87 @@
 
-import java.io.*;
-import java.net.*;
 import java.util.Random;
-import java.util.logging.Logger;
 import javax.swing.*;
 
 public class Client1 extends javax.swing.JFrame {
 
-    private Socket socket;
-    private DataInputStream dis;
-    private DataOutputStream dout;
-    private String clientName;
-    private static final Logger logger = Logger.getLogger(Client1.class.getName());
+    // Connection to the server; null until a server address was entered
+    private ClientConnection connection;
+    private static final int PORT = 7777;
+    // Messages queued for sending, e.g. while reconnecting, before further sends are refused
+    private static final int OUTBOUND_CAPACITY = ServerConfig.intProperty("chat.client.outbound.capacity", 1000);
+    // Lines kept in the message view, and how often queued messages are shown (about once per frame)
+    private static final int HISTORY_LINES = ServerConfig.intProperty("chat.client.history.lines", 10000);
+    private static final int REFRESH_MS = ServerConfig.intProperty("chat.client.refresh.ms", 16);
+    // Connect with TLS, trusting the given store (e.g. the server's self-signed chat.p12) or the JVM's CAs
+    private static final boolean TLS = Boolean.getBoolean("chat.client.tls");
+    private static final String TRUST_STORE = System.getProperty("chat.client.truststore");
+    private static final String TRUST_STORE_PASSWORD = System.getProperty("chat.client.truststore.password", "changeit");
+
+    // Received messages; the reader thread only queues them, the refresh timer shows them
+    private final MessageListModel history = new MessageListModel(HISTORY_LINES);
+    private final Timer refreshTimer = new Timer(REFRESH_MS, e -> refresh());
 
     // Constructor initializes GUI and connects to server
     public Client1() {
         initComponents();
+        refreshTimer.start();
         connectToServer();
     }
 
-    // Handles server connection logic
+    // Timer tick on the EDT: shows the messages queued since the last tick in one update. Follows
+    // the newest line while the view is scrolled to the bottom; otherwise keeps the lines being
+    // read in place as the oldest ones drop out
+    private void refresh() {
+        JScrollBar scrollBar = jScrollPane1.getVerticalScrollBar();
+        boolean atBottom = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum();
+        int dropped = history.flush();
+        if (atBottom) {
+            msg_list.ensureIndexIsVisible(history.getSize() - 1);
+        } else if (dropped > 0) {
+            scrollBar.setValue(scrollBar.getValue() - dropped * msg_list.getFixedCellHeight());
+        }
+    }
+
+    // Asks for the server and a name, then connects in the background
     private void connectToServer() {
         String serverIP = JOptionPane.showInputDialog(this, "Enter server IP:", "127.0.0.1");
         if (serverIP == null || serverIP.trim().isEmpty()) {
             serverIP = "127.0.0.1";
         }
 
-        clientName = JOptionPane.showInputDialog(this, "Enter your name:", "Client");
+        String clientName = JOptionPane.showInputDialog(this, "Enter your name:", "Client");
         if (clientName == null || clientName.trim().isEmpty()) {
             clientName = "Client" + new Random().nextInt(1000);
         }
 
-        String finalServerIP = serverIP;
-
-        // Start new thread for connection and message handling
-        new Thread(() -> {
-            while (true) {
-                try {
-                    if (!isValidIP(finalServerIP)) {
-                        SwingUtilities.invokeLater(()
-                                -> msg_area.append("❌ Invalid IP address format. Use format like 127.0.0.1\n"));
-                        return;
-                    }
-
-                    if (!isIPReachable(finalServerIP)) {
-                        SwingUtilities.invokeLater(()
-                                -> msg_area.append("⚠ IP address " + finalServerIP + " is not reachable\n"));
-                        Thread.sleep(5000);
-                        continue;
-                    }
-
-                    SwingUtilities.invokeLater(()
-                            -> msg_area.append("🔄 Trying to connect to " + finalServerIP + "...\n"));
-
-                    socket = new Socket();
-                    socket.connect(new InetSocketAddress(finalServerIP, 7777), 2000);
-
-                    dis = new DataInputStream(socket.getInputStream());
-                    dout = new DataOutputStream(socket.getOutputStream());
-
-                    dout.writeUTF(clientName);
-                    SwingUtilities.invokeLater(()
-                            -> msg_area.append("✅ Connected to " + finalServerIP + " as " + clientName + "\n"));
-
-                    String msgin;
-                    while (socket != null && !socket.isClosed() && (msgin = dis.readUTF()) != null) {
-                        final String msg = msgin;
-                        SwingUtilities.invokeLater(() -> msg_area.append(msg + "\n"));
-                    }
-                } catch (ConnectException e) {
-                    SwingUtilities.invokeLater(()
-                            -> msg_area.append("⚠ Server not running at " + finalServerIP + ". Retrying in 5 seconds...\n"));
-                } catch (IOException e) {
-                    SwingUtilities.invokeLater(()
-                            -> msg_area.append("⚠ Connection error (" + finalServerIP + "): " + e.getMessage() + "\n"));
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return;
-                } finally {
-                    disconnect();
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        return;
-                    }
-                }
+        if (!isValidIP(serverIP)) {
+            history.add("❌ Invalid IP address format. Use format like 127.0.0.1");
+            return;
+        }
+
+        javax.net.ssl.SSLContext tls = null;
+        if (TLS) {
+            try {
+                tls = Tls.clientContext(TRUST_STORE, TRUST_STORE_PASSWORD.toCharArray());
+            } catch (java.io.IOException e) {
+                history.add("❌ TLS setup failed: " + e.getMessage());
+                return;
+            }
+        }
+
+        // Both callbacks come from the connection's threads; the model only queues
+        connection = new ClientConnection(serverIP, PORT, clientName, OUTBOUND_CAPACITY, tls, new ClientConnection.Listener() {
+            @Override
+            public void onMessage(ChatMessage message) {
+                history.add(message.legacyText());
+            }
+
+            @Override
+            public void onStatus(String status) {
+                history.add(status);
             }
-        }).start();
+        });
+        connection.start();
     }
 
     // Validates IP format
@@ -115,72 +109,70 @@ public class Client1 extends javax.swing.JFrame {
         }
     }
 
-    // Checks if IP is reachable
-    private boolean isIPReachable(String ip) {
-        try {
-            if (ip.startsWith("127.")) {
-                return true;
-            }
-            InetAddress address = InetAddress.getByName(ip);
-            return address.isReachable(2000);
-        } catch (IOException e) {
-            return false;
+    // Queues the typed message; the connection's writer sends it, after a reconnect if need be
+    private void msg_sendActionPerformed(java.awt.event.ActionEvent evt) {
+        String msg = msg_text.getText().trim();
+        if (msg.isEmpty() || connection == null) {
+            return;
         }
-    }
-
-    // Disconnects from server and closes streams
-    private void disconnect() {
-        try {
-            if (dout != null) {
-                dout.close();
-            }
-            if (dis != null) {
-                dis.close();
-            }
-            if (socket != null) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            logger.severe("Error disconnecting: " + e.getMessage());
+        if (!connection.send(toFrame(msg))) {
+            history.add("⚠ Too many unsent messages, not sent: " + msg);
+            return;
+        }
+        if (!msg.startsWith("/")) {
+            history.add(connection.isConnected() ? "You: " + msg : "You: " + msg + " (will be sent on reconnect)");
         }
+        msg_text.setText("");
     }
 
-    // Sends message to server on button click
-    private void msg_sendActionPerformed(java.awt.event.ActionEvent evt) {
-        String msg = msg_text.getText().trim();
-        if (!msg.isEmpty()) {
-            try {
-                dout.writeUTF(msg);
-                msg_area.append("You: " + msg + "\n");
-                msg_text.setText("");
-            } catch (IOException e) {
-                logger.severe("Error sending message: " + e.getMessage());
-                msg_area.append("⚠ Error sending message: " + e.getMessage() + "\n");
-            }
+    // Turns typed text into a frame: the room commands get their own frame types, anything else is chat
+    private static ChatMessage toFrame(String msg) {
+        String[] parts = msg.split("\\s+", 2);
+        switch (parts[0].toLowerCase()) {
+            case "/join":
+                if (parts.length == 2) {
+                    return new ChatMessage(WireProtocol.ROOM_JOIN, 0, null, parts[1]);
+                }
+                break;
+            case "/leave":
+                return new ChatMessage(WireProtocol.ROOM_LEAVE, 0, null, null);
+            case "/rooms":
+                return new ChatMessage(WireProtocol.ROOM_LIST, 0, null, null);
+            default:
+                break;
         }
+        return ChatMessage.chat(null, msg);
     }
 
     // Initializes GUI components
     private void initComponents() {
         jLabel1 = new javax.swing.JLabel();
         jScrollPane1 = new javax.swing.JScrollPane();
-        msg_area = new javax.swing.JTextArea();
+        msg_list = new javax.swing.JList<>(history);
         msg_send = new javax.swing.JButton();
         msg_text = new javax.swing.JTextField();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
+        addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosing(java.awt.event.WindowEvent e) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        });
         setTitle("Chat Client");
 
         jLabel1.setFont(new java.awt.Font("Cambria", 1, 36));
         jLabel1.setText("Client");
 
-        msg_area.setBackground(new java.awt.Color(0, 0, 0));
-        msg_area.setColumns(20);
-        msg_area.setFont(new java.awt.Font("Arial", 0, 14));
-        msg_area.setForeground(new java.awt.Color(255, 255, 255));
-        msg_area.setRows(5);
-        msg_area.setEditable(false);
-        jScrollPane1.setViewportView(msg_area);
+        msg_list.setBackground(new java.awt.Color(0, 0, 0));
+        msg_list.setFont(new java.awt.Font("Arial", 0, 14));
+        msg_list.setForeground(new java.awt.Color(255, 255, 255));
+        // Fixed cell size: the list never measures rows it does not show, and rows span the viewport
+        msg_list.setFixedCellHeight(msg_list.getFontMetrics(msg_list.getFont()).getHeight() + 2);
+        msg_list.setFixedCellWidth(1);
+        jScrollPane1.setViewportView(msg_list);
 
         msg_send.setBackground(new java.awt.Color(204, 0, 51));
         msg_send.setFont(new java.awt.Font("Cambria", 0, 16));
@@ -234,7 +226,7 @@ public class Client1 extends javax.swing.JFrame {
 
     private javax.swing.JLabel jLabel1;
     private javax.swing.JScrollPane jScrollPane1;
-    private javax.swing.JTextArea msg_area;
+    private javax.swing.JList<String> msg_list;
     private javax.swing.JButton msg_send;
     private javax.swing.JTextField msg_text;
 }
@@ -0,0 +1,373 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+// Client side of one user's connection to the chat server, with no Swing dependency (Client1 is
+// one user of it). A reader thread connects, reconnects after a drop and resumes the session,
+// then hands every received message to the listener. Sends never touch the socket: send() only
+// queues, and a writer thread writes whatever is queued as one batch with a single flush. The
+// queue outlives connections, so messages sent while disconnected go out after the reconnect; a
+// batch that failed mid-write is sent again, so a message may arrive twice but is not lost.
+// Reconnects retry at once after a drop, then back off exponentially with jitter (see Backoff),
+// except after a RESTART notice, which says how long to wait before the first retry;
+// the time from each drop to the next completed handshake is recorded. With an SSLContext the
+// connection uses TLS; the context lives as long as this object, so reconnects resume the session
+public final class ClientConnection {
+
+    private static final Logger logger = Logger.getLogger(ClientConnection.class.getName());
+
+    // Messages between two acknowledgements sent to the server
+    private static final int ACK_EVERY = 32;
+    // Most frames written per flush
+    private static final int MAX_BATCH = 64;
+    // Backoff ceiling for the first delayed retry and the longest wait between attempts
+    private static final int RECONNECT_BASE_MS = ServerConfig.intProperty("chat.client.reconnect.base.ms", 250);
+    private static final int RECONNECT_MAX_MS = ServerConfig.intProperty("chat.client.reconnect.max.ms", 30000);
+    private static final int CONNECT_TIMEOUT_MS = ServerConfig.intProperty("chat.client.connect.timeout.ms", 2000);
+    // The "retry in N ms" hint in an admission refusal
+    private static final Pattern RETRY_HINT = Pattern.compile("retry in (\\d+) ms");
+    // How long close() waits for queued messages and the exit to be written
+    private static final long CLOSE_MILLIS = 1000;
+
+    // Receives what happens on the connection
+    public interface Listener {
+        // A message from the server (reader thread)
+        void onMessage(ChatMessage message);
+
+        // A human-readable change of the connection state (reader or writer thread)
+        void onStatus(String status);
+    }
+
+    private final String host;
+    private final int port;
+    private final String name;
+    private final Listener listener;
+    // TLS context, or null for plain TCP
+    private final SSLContext tls;
+    private final BlockingQueue<ChatMessage> outbound;
+    private final Thread reader;
+    private final Thread writer;
+    private volatile boolean running = true;
+    // Set once close() begins, so the server closing the socket after our exit is not reported
+    private volatile boolean closing;
+    // Counted down by the writer once a batch holding the EXIT from close() has been flushed
+    private final CountDownLatch exitWritten = new CountDownLatch(1);
+
+    // The current connection, replaced under this object's monitor by the reader thread
+    private Socket socket;
+    private DataOutputStream out;
+    private boolean deflate;
+
+    // Reader thread only: highest server seq received (a reconnect asks for what came after it),
+    // the last one acknowledged, and the session to resume after a drop
+    private long lastSeen;
+    private long lastAcked;
+    private String sessionToken;
+    private final Backoff backoff = new Backoff(RECONNECT_BASE_MS, RECONNECT_MAX_MS);
+    // Least wait the server asked for when it last refused us or announced a restart
+    private long retryHintMillis;
+    // Set when the server announced a restart, so the drop that follows is not reported as a problem
+    private boolean restarting;
+
+    // Reader thread only: milliseconds from losing a connection to the next completed handshake,
+    // and connection attempts that failed or were refused; logged on every reconnect
+    private final LatencyHistogram reconnectTimes = new LatencyHistogram();
+    private long failedAttempts;
+    // Writer thread only: our outbound sequence number
+    private long seq;
+
+    // Creates a plain TCP connection; nothing happens until start()
+    public ClientConnection(String host, int port, String name, int capacity, Listener listener) {
+        this(host, port, name, capacity, null, listener);
+    }
+
+    // Creates a connection using TLS when tls is not null; nothing happens until start()
+    public ClientConnection(String host, int port, String name, int capacity, SSLContext tls, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.tls = tls;
+        this.listener = listener;
+        this.outbound = new LinkedBlockingQueue<>(Math.max(1, capacity));
+        this.reader = new Thread(this::readLoop, "chat-reader");
+        this.writer = new Thread(this::writeLoop, "chat-writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+    }
+
+    // Starts connecting in the background
+    public void start() {
+        reader.start();
+        writer.start();
+    }
+
+    // Queues a message for the server; returns false if the queue is full. Never blocks, so it is
+    // safe on the Event Dispatch Thread
+    public boolean send(ChatMessage message) {
+        return running && outbound.offer(message);
+    }
+
+    // Messages queued and not yet written
+    public int pending() {
+        return outbound.size();
+    }
+
+    // True while a connection has finished its handshake
+    public synchronized boolean isConnected() {
+        return out != null;
+    }
+
+    // Sends what is still queued and an exit (if connected), then disconnects for good
+    public void close() {
+        if (!running || closing) {
+            return;
+        }
+        closing = true;
+        // The queue empties as soon as the writer takes a batch, so wait for the writer's word instead
+        boolean queued = outbound.offer(new ChatMessage(WireProtocol.EXIT, 0, null, null));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_MILLIS);
+        try {
+            while (queued && isConnected() && !exitWritten.await(10, TimeUnit.MILLISECONDS)
+                    && System.nanoTime() < deadline) {
+                // the writer is still sending what was queued before the exit
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        running = false;
+        reader.interrupt();
+        writer.interrupt();
+        disconnect();
+    }
+
+    // Connects, reads until the connection drops, and starts over after the backoff delay
+    private void readLoop() {
+        // When the last established connection dropped; 0 before the first one and while connected
+        long droppedAt = 0;
+        listener.onStatus("🔄 Connecting to " + host + "...");
+        while (running) {
+            String problem = null;
+            boolean established = false;
+            try {
+                DataInputStream in = connect(droppedAt);
+                established = in != null;
+                if (established) {
+                    droppedAt = 0;
+                }
+                while (in != null && running) {
+                    ChatMessage message = WireProtocol.read(in);
+                    if (message.type == WireProtocol.RESTART) {
+                        onRestart(message.text);
+                        continue;
+                    }
+                    lastSeen = Math.max(lastSeen, message.seq);
+                    if (lastSeen - lastAcked >= ACK_EVERY) {
+                        outbound.offer(new ChatMessage(WireProtocol.ACK, 0, null, Long.toString(lastSeen)));
+                        lastAcked = lastSeen;
+                    }
+                    listener.onMessage(message);
+                }
+            } catch (ConnectException e) {
+                problem = "⚠ Server not running at " + host + ".";
+            } catch (IOException e) {
+                String reason = e.getMessage() != null ? e.getMessage() : "closed by the server";
+                problem = (established ? "⚠ Connection lost (" : "⚠ Connection error (") + host + "): " + reason + ".";
+            } finally {
+                disconnect();
+            }
+            if (established) {
+                droppedAt = System.nanoTime();
+            } else {
+                failedAttempts++;
+            }
+            if (restarting) {
+                restarting = false;
+                problem = null;
+            }
+            if (!running || closing || !pause(problem)) {
+                return;
+            }
+        }
+    }
+
+    // The server is going down for a restart and told us when to come back
+    private void onRestart(String delay) {
+        retryHintMillis = Math.max(0, parseMillis(delay));
+        restarting = true;
+        listener.onStatus("🔄 Server restarting, reconnecting in " + formatDelay(retryHintMillis) + "...");
+    }
+
+    private static long parseMillis(String value) {
+        try {
+            return Long.parseLong(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String formatDelay(long millis) {
+        return millis < 1000 ? millis + " ms" : String.format("%.1f s", millis / 1000.0);
+    }
+
+    // Waits before the next attempt: not at all after a drop, otherwise the backoff delay (at least
+    // what a refusal asked for). Returns false if interrupted by close()
+    private boolean pause(String problem) {
+        long delay = Math.max(backoff.nextDelayMillis(), retryHintMillis);
+        retryHintMillis = 0;
+        if (problem != null) {
+            String wait = delay == 0 ? "now" : "in " + formatDelay(delay);
+            listener.onStatus(problem + " Retrying " + wait + " (attempt " + backoff.failures() + ")...");
+        }
+        if (delay == 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    // Opens a socket (TLS if configured) and does the v2 handshake, offering compression and, after a drop, the
+    // session to resume and the last seq seen. Publishes the connection to the writer and returns
+    // its input, or returns null if the server refused it. droppedAt is when the previous connection
+    // was lost (0 if there was none), for timing the reconnect
+    private DataInputStream connect(long droppedAt) throws IOException {
+        Socket candidate = new Socket();
+        synchronized (this) {
+            socket = candidate;
+        }
+        candidate.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        candidate.setTcpNoDelay(true);
+        Socket connected = candidate;
+        String security = "";
+        if (tls != null) {
+            candidate.setSoTimeout(CONNECT_TIMEOUT_MS);
+            SSLSocket secure = Tls.clientHandshake(tls, candidate, host, port);
+            secure.setSoTimeout(0);
+            synchronized (this) {
+                socket = secure;
+            }
+            connected = secure;
+            security = " (" + secure.getSession().getProtocol() + ")";
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connected.getInputStream()));
+        DataOutputStream handshake = new DataOutputStream(new BufferedOutputStream(connected.getOutputStream()));
+
+        handshake.writeUTF(sessionToken != null
+                ? WireProtocol.hello(name, Compression.OPTION, "resume=" + sessionToken, "since=" + lastSeen)
+                : WireProtocol.hello(name, Compression.OPTION));
+        handshake.flush();
+        ChatMessage hello = WireProtocol.read(in);
+        if (hello.type == WireProtocol.REJECT) {
+            listener.onStatus("⛔ Server refused the connection: " + hello.text);
+            Matcher hint = RETRY_HINT.matcher(String.valueOf(hello.text));
+            retryHintMillis = hint.find() ? Long.parseLong(hint.group(1)) : 0;
+            return null;
+        }
+        if (hello.type != WireProtocol.HELLO) {
+            throw new ProtocolException("Server does not speak protocol v2");
+        }
+        boolean resumed = WireProtocol.hasOption(hello.text, "resumed");
+        sessionToken = WireProtocol.optionValue(hello.text, "session");
+        synchronized (this) {
+            deflate = WireProtocol.hasOption(hello.text, Compression.OPTION);
+            out = handshake;
+            notifyAll();
+        }
+        backoff.reset();
+        if (droppedAt != 0) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - droppedAt);
+            reconnectTimes.record(millis);
+            logger.info("Reconnected to " + host + " after " + millis + " ms (" + reconnectTimes.count()
+                    + " reconnects, median " + reconnectTimes.percentile(50) + " ms, max " + reconnectTimes.max()
+                    + " ms; " + failedAttempts + " failed attempts)");
+            listener.onStatus((resumed
+                    ? "✅ Reconnected to " + host + ", session resumed"
+                    : "✅ Reconnected to " + host + " as " + name) + security + " (after " + millis + " ms)");
+        } else {
+            listener.onStatus("✅ Connected to " + host + " as " + name + security);
+        }
+        return in;
+    }
+
+    // Writes queued messages in batches whenever a connection is up
+    private void writeLoop() {
+        List<ChatMessage> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (running) {
+                if (batch.isEmpty()) {
+                    batch.add(outbound.take());
+                    outbound.drainTo(batch, MAX_BATCH - 1);
+                }
+                DataOutputStream current;
+                boolean compress;
+                synchronized (this) {
+                    while (out == null) {
+                        wait();
+                    }
+                    current = out;
+                    compress = deflate;
+                }
+                try {
+                    boolean exit = false;
+                    for (ChatMessage message : batch) {
+                        ByteBuffer frame = WireProtocol.encode(message, ++seq, compress, false);
+                        current.write(frame.array(), frame.arrayOffset(), frame.remaining());
+                        exit |= message.type == WireProtocol.EXIT;
+                    }
+                    current.flush();
+                    batch.clear();
+                    if (exit) {
+                        exitWritten.countDown();
+                    }
+                } catch (IOException e) {
+                    // Keep the batch for the next connection; the reader notices the drop and reconnects
+                    logger.fine("Write failed, will resend after reconnect: " + e.getMessage());
+                    drop(current);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    // Closes the connection the writer failed on, unless the reader already replaced it
+    private synchronized void drop(DataOutputStream failed) {
+        if (out == failed) {
+            disconnect();
+        }
+    }
+
+    // Closes the current socket; the writer waits until the next handshake
+    private synchronized void disconnect() {
+        out = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.severe("Error disconnecting: " + e.getMessage());
+            }
+            socket = null;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// Creates the executor that runs blocking ServerClient1handler tasks
+public final class ClientExecutors {
+
+    private static final Logger logger = Logger.getLogger(ClientExecutors.class.getName());
+
+    private ClientExecutors() {
+    }
+
+    // Returns an executor for "platform", "virtual" or "pool" execution
+    public static ExecutorService create(String kind, int poolSize) {
+        switch (kind) {
+            case "virtual":
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null) {
+                    return virtual;
+                }
+                logger.warning("Virtual threads need Java 21+, falling back to platform threads");
+                return newPlatformExecutor();
+            case "pool":
+                return Executors.newFixedThreadPool(Math.max(1, poolSize), namedThreads("client-pool-"));
+            case "platform":
+                return newPlatformExecutor();
+            default:
+                logger.warning("Unknown executor '" + kind + "', using platform threads");
+                return newPlatformExecutor();
+        }
+    }
+
+    // Returns the executor for outbound drains. A drain blocks while its client's socket is full, so
+    // "pool" mode gets unbounded threads here: a fixed pool would let that many slow receivers stall
+    // fan-out to everyone else. Only the readers stay capped at chat.pool.size
+    public static ExecutorService createWriters(String kind) {
+        if (kind.equals("pool")) {
+            return Executors.newCachedThreadPool(namedThreads("client-writer-"));
+        }
+        return create(kind, 0);
+    }
+
+    // One platform thread per client, reused once the client leaves
+    private static ExecutorService newPlatformExecutor() {
+        return Executors.newCachedThreadPool(namedThreads("client-"));
+    }
+
+    // Looks up Executors.newVirtualThreadPerTaskExecutor() so the code still runs on older JDKs
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Thread factory giving handler threads readable names
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> new Thread(task, prefix + counter.incrementAndGet());
+    }
+}
@@ -0,0 +1,462 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Links this server to the other nodes of a cluster (static peer list, full mesh). Every message
+// broadcast by a local client is encoded once and relayed once to each peer, which fans it out to
+// its own clients and never relays it further. Each peer link is one outbound TCP connection with
+// a sender thread that drains its queue in batches:
+//
+//   [record count: int] then per record [type: byte] and
+//     MESSAGE   [room: UTF][frame length: int][uncompressed v2 frame]
+//     PRESENCE  [name: UTF][room: UTF, "" when the user left]
+//     SNAPSHOT  (drop everything known about the sending node; its presence follows)
+//
+// Presence keeps a cluster-wide view of who is in which room: a link sends a snapshot of the local
+// members whenever it connects, then every change, and a node's members are forgotten when its
+// link drops. Records queued while a link is down are discarded; the snapshot resynchronizes it.
+//
+// The cluster port listens on chat.cluster.bind (loopback by default). A connecting peer must
+// prove it knows chat.cluster.secret: the listening node first sends a random challenge, and the
+// peer answers with [HELLO + node id: UTF][HMAC-SHA256(secret, challenge + node id): UTF, base64]
+final class ClusterNode implements RoomRegistry.Listener {
+
+    private static final Logger logger = Logger.getLogger(ClusterNode.class.getName());
+
+    private static final String HELLO = "CHATCLUSTER2 ";
+    // How long a connecting peer has to answer the challenge
+    private static final int GREETING_TIMEOUT_MS = 5000;
+    private static final byte MESSAGE = 1;
+    private static final byte PRESENCE = 2;
+    private static final byte SNAPSHOT = 3;
+    private static final int QUEUE_CAPACITY = 65536;
+    // Largest relayed frame: a maximal payload plus the type byte and two 10-byte varints
+    private static final int MAX_FRAME_BYTES = ServerConfig.MAX_PAYLOAD_BYTES + 21;
+    private static final int MAX_BATCH = 512;
+    // Backoff between attempts to reach a peer: immediate, then up to 100 ms doubling to 5 s
+    private static final long RECONNECT_BASE_MILLIS = 100;
+    private static final long RECONNECT_MAX_MILLIS = 5000;
+
+    private final ChatServer server;
+    private final String nodeId;
+    private final String bindAddress;
+    private final int port;
+    // Empty when no secret is configured (loopback only)
+    private final byte[] secret;
+    private final SecureRandom random = new SecureRandom();
+    private final List<Link> links = new ArrayList<>();
+    // Members of the other nodes: node id -> (name -> room)
+    private final Map<String, Map<String, String>> remoteMembers = new ConcurrentHashMap<>();
+    // Connection whose room is published for each local name; a resumed session's new connection
+    // takes its name over before the connection it replaced leaves
+    private final ConcurrentHashMap<String, ServerClient1handler> localOwners = new ConcurrentHashMap<>();
+    private final List<Socket> inbound = new CopyOnWriteArrayList<>();
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    ClusterNode(ChatServer server, String nodeId, String bindAddress, int port, String secret,
+            List<InetSocketAddress> peers) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.secret = secret == null ? new byte[0] : secret.getBytes(StandardCharsets.UTF_8);
+        for (InetSocketAddress peer : peers) {
+            links.add(new Link(peer));
+        }
+    }
+
+    // The node configured by -Dchat.cluster.*, or null when clustering is off
+    static ClusterNode fromConfig(ChatServer server) {
+        if (ServerConfig.CLUSTER_PORT <= 0) {
+            return null;
+        }
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : ServerConfig.CLUSTER_PEERS.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            try {
+                peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            } catch (RuntimeException e) {
+                logger.warning("Ignoring bad cluster peer '" + peer + "', expected host:port");
+            }
+        }
+        return new ClusterNode(server, ServerConfig.CLUSTER_NODE, ServerConfig.CLUSTER_BIND, ServerConfig.CLUSTER_PORT,
+                ServerConfig.CLUSTER_SECRET, peers);
+    }
+
+    // Listens for peers and starts connecting to them. Refuses to listen beyond loopback without a secret
+    void start() throws IOException {
+        InetAddress bind = InetAddress.getByName(bindAddress);
+        if (secret.length == 0 && !bind.isLoopbackAddress()) {
+            throw new IOException("chat.cluster.secret is required to listen for cluster peers on " + bindAddress);
+        }
+        serverSocket = new ServerSocket(port, 50, bind);
+        running = true;
+        acceptThread = new Thread(this::acceptLoop, "cluster-acceptor");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        for (Link link : links) {
+            link.thread.start();
+        }
+        server.log("Cluster node " + nodeId + " listening on " + bindAddress + ":" + port + " with " + links.size() + " peers");
+    }
+
+    // Closes every peer connection and forgets the remote members
+    void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            logger.warning("Error closing cluster socket: " + e.getMessage());
+        }
+        for (Link link : links) {
+            link.close();
+        }
+        for (Socket socket : inbound) {
+            closeQuietly(socket);
+        }
+        remoteMembers.clear();
+    }
+
+    // Relays a locally broadcast message to every connected peer; the record is encoded once and shared
+    void relay(String room, ChatMessage message) {
+        if (links.isEmpty()) {
+            return;
+        }
+        ByteBuffer frame = WireProtocol.encode(message, 0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(frame.remaining() + room.length() + 8);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(MESSAGE);
+            out.writeUTF(room);
+            out.writeInt(frame.remaining());
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        } catch (IOException impossible) {
+            throw new IllegalStateException(impossible);
+        }
+        send(bytes.toByteArray());
+        server.getMetrics().relayedOut.increment();
+    }
+
+    // Presence records for one name are queued inside its map entry's update, so they stay in order
+    @Override
+    public void joined(ServerClient1handler client, RoomRegistry.Room room) {
+        localOwners.compute(client.getClientName(), (name, owner) -> {
+            send(presence(name, room.name));
+            return client;
+        });
+    }
+
+    // A move joins the new room before leaving the old one, and a connection replaced by a resumed
+    // session may close after its successor joined; either way the new room is already published
+    @Override
+    public void left(ServerClient1handler client, RoomRegistry.Room room) {
+        if (client.getRoomName() != null) {
+            return;
+        }
+        localOwners.computeIfPresent(client.getClientName(), (name, owner) -> {
+            if (owner != client) {
+                return owner;
+            }
+            send(presence(name, ""));
+            return null;
+        });
+    }
+
+    // Members of each room on the other nodes
+    Map<String, Integer> remoteRoomSizes() {
+        Map<String, Integer> sizes = new HashMap<>();
+        for (Map<String, String> members : remoteMembers.values()) {
+            for (String room : members.values()) {
+                sizes.merge(room, 1, Integer::sum);
+            }
+        }
+        return sizes;
+    }
+
+    // Clients connected to other nodes
+    int remoteMemberCount() {
+        int count = 0;
+        for (Map<String, String> members : remoteMembers.values()) {
+            count += members.size();
+        }
+        return count;
+    }
+
+    private void send(byte[] record) {
+        for (Link link : links) {
+            link.offer(record);
+        }
+    }
+
+    private static byte[] presence(String name, String room) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(name.length() + room.length() + 8);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(PRESENCE);
+            out.writeUTF(name);
+            out.writeUTF(room);
+        } catch (IOException impossible) {
+            throw new IllegalStateException(impossible);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Accepts connections from peers, one reader thread each
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> readPeer(socket), "cluster-in-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    logger.warning("Error accepting cluster peer: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Applies the batches a peer sends until its connection closes
+    private void readPeer(Socket socket) {
+        inbound.add(socket);
+        String peer = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            String greeted = greet(socket, in);
+            if (greeted == null) {
+                server.log("Refused cluster connection from " + socket.getInetAddress().getHostAddress()
+                        + ": bad greeting or secret");
+                return;
+            }
+            peer = greeted;
+            Map<String, String> members = new ConcurrentHashMap<>();
+            remoteMembers.put(peer, members);
+            server.log("Cluster peer " + peer + " connected");
+
+            while (running) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    byte type = in.readByte();
+                    if (type == MESSAGE) {
+                        String room = in.readUTF();
+                        int length = in.readInt();
+                        if (length < 0 || length > MAX_FRAME_BYTES) {
+                            throw new ProtocolException("Malformed relayed frame length " + length);
+                        }
+                        byte[] frame = new byte[length];
+                        in.readFully(frame);
+                        ChatMessage message = WireProtocol.decode(ByteBuffer.wrap(frame));
+                        if (message == null) {
+                            throw new IOException("Truncated relayed frame");
+                        }
+                        server.getMetrics().relayedIn.increment();
+                        server.deliverRelayed(room, message);
+                    } else if (type == PRESENCE) {
+                        String name = in.readUTF();
+                        String room = in.readUTF();
+                        if (room.isEmpty()) {
+                            members.remove(name);
+                        } else {
+                            members.put(name, room);
+                        }
+                    } else if (type == SNAPSHOT) {
+                        members.clear();
+                    } else {
+                        throw new IOException("Unknown cluster record " + type);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (running && !(e instanceof SocketException)) {
+                logger.warning("Cluster peer " + peer + " failed: " + e.getMessage());
+            }
+        } finally {
+            inbound.remove(socket);
+            closeQuietly(socket);
+            if (peer != null) {
+                remoteMembers.remove(peer);
+                server.log("Cluster peer " + peer + " disconnected");
+            }
+        }
+    }
+
+    // Challenges a connecting peer and returns its node id, or null if it did not prove the secret
+    private String greet(Socket socket, DataInputStream in) throws IOException {
+        byte[] challenge = new byte[16];
+        random.nextBytes(challenge);
+        String encoded = Base64.getEncoder().encodeToString(challenge);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF(encoded);
+        out.flush();
+        socket.setSoTimeout(GREETING_TIMEOUT_MS);
+        String hello = in.readUTF();
+        String proof = in.readUTF();
+        socket.setSoTimeout(0);
+        if (!hello.startsWith(HELLO)) {
+            return null;
+        }
+        String peer = hello.substring(HELLO.length());
+        byte[] expected = prove(encoded, peer).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, proof.getBytes(StandardCharsets.UTF_8)) ? peer : null;
+    }
+
+    // The answer to a challenge for a node id: an HMAC keyed by the secret, or "-" without one
+    private String prove(String challenge, String node) {
+        if (secret.length == 0) {
+            return "-";
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return Base64.getEncoder().encodeToString(mac.doFinal((challenge + node).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.fine("Error closing cluster socket: " + e.getMessage());
+        }
+    }
+
+    // Outbound connection to one peer with its relay queue and sender thread
+    private final class Link {
+        private final InetSocketAddress address;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Thread thread;
+        private volatile boolean connected;
+        private volatile Socket socket;
+        private final Backoff backoff = new Backoff(RECONNECT_BASE_MILLIS, RECONNECT_MAX_MILLIS);
+
+        Link(InetSocketAddress address) {
+            this.address = address;
+            this.thread = new Thread(this::run, "cluster-out-" + address.getHostString() + ":" + address.getPort());
+            this.thread.setDaemon(true);
+        }
+
+        // Queues a record while connected; a full queue means the peer is too slow and the record is dropped
+        void offer(byte[] record) {
+            if (connected && !queue.offer(record)) {
+                server.getMetrics().relayDropped.increment();
+            }
+        }
+
+        // Connects (retrying while the peer is down), sends the presence snapshot, then batches the queue
+        private void run() {
+            while (running) {
+                try (Socket peer = new Socket()) {
+                    peer.connect(new InetSocketAddress(address.getHostString(), address.getPort()), 2000);
+                    peer.setTcpNoDelay(true);
+                    socket = peer;
+                    peer.setSoTimeout(GREETING_TIMEOUT_MS);
+                    String challenge = new DataInputStream(peer.getInputStream()).readUTF();
+                    peer.setSoTimeout(0);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(peer.getOutputStream(), 65536));
+                    out.writeUTF(HELLO + nodeId);
+                    out.writeUTF(prove(challenge, nodeId));
+
+                    // Anything queued before the snapshot is stale; changes from now on follow it
+                    queue.clear();
+                    connected = true;
+                    backoff.reset();
+                    List<byte[]> batch = snapshot();
+                    writeBatch(out, batch);
+                    server.log("Connected to cluster peer " + address.getHostString() + ":" + address.getPort());
+
+                    while (running) {
+                        batch.clear();
+                        byte[] first = queue.poll(1, TimeUnit.SECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        writeBatch(out, batch);
+                    }
+                } catch (IOException e) {
+                    if (connected && running) {
+                        server.log("Lost cluster peer " + address.getHostString() + ":" + address.getPort() + ": " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    socket = null;
+                }
+                try {
+                    Thread.sleep(backoff.nextDelayMillis());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // SNAPSHOT followed by the presence of every local client that finished its handshake
+        private List<byte[]> snapshot() {
+            List<byte[]> records = new ArrayList<>();
+            records.add(new byte[] {SNAPSHOT});
+            for (ServerClient1handler client : server.getClients()) {
+                String room = client.getRoomName();
+                if (room != null) {
+                    records.add(presence(client.getClientName(), room));
+                }
+            }
+            return records;
+        }
+
+        // One batch frame, one flush
+        private void writeBatch(DataOutputStream out, List<byte[]> batch) throws IOException {
+            out.writeInt(batch.size());
+            for (byte[] record : batch) {
+                out.write(record);
+            }
+            out.flush();
+        }
+
+        void close() {
+            thread.interrupt();
+            Socket current = socket;
+            if (current != null) {
+                closeQuietly(current);
+            }
+        }
+    }
+}
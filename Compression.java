@@ -0,0 +1,90 @@
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Per-message DEFLATE for v2 frames (negotiated with the "deflate" hello option).
+// Every message is compressed on its own, with no dictionary carried between messages, so a
+// broadcast frame can be compressed once and shared by every recipient. Deflaters and inflaters
+// hold native memory, so they are pooled and reset rather than created per message
+final class Compression {
+
+    // Hello option naming this codec
+    static final String OPTION = "deflate";
+
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+    private static final int MAX_POOLED = 64;
+
+    private Compression() {
+    }
+
+    // Returns the raw DEFLATE form of the input, or null if it would not be smaller
+    static byte[] deflate(byte[] input) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(ServerConfig.COMPRESSION_LEVEL, true);
+        }
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            byte[] output = new byte[input.length];
+            int length = 0;
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            return deflater.finished() && length < input.length ? Arrays.copyOf(output, length) : null;
+        } finally {
+            release(deflater);
+        }
+    }
+
+    // Inflates exactly rawLength bytes, rejecting input that does not match its declared size
+    static byte[] inflate(byte[] input, int offset, int length, int rawLength) throws ProtocolException {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(input, offset, length);
+            byte[] output = new byte[rawLength];
+            int produced = 0;
+            while (produced < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(output, produced, rawLength - produced);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                produced += n;
+            }
+            if (produced != rawLength) {
+                throw new ProtocolException("Compressed payload does not match its length");
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Bad compressed payload: " + e.getMessage());
+        } finally {
+            release(inflater);
+        }
+    }
+
+    private static void release(Deflater deflater) {
+        deflater.reset();
+        if (DEFLATERS.size() < MAX_POOLED) {
+            DEFLATERS.add(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    private static void release(Inflater inflater) {
+        inflater.reset();
+        if (INFLATERS.size() < MAX_POOLED) {
+            INFLATERS.add(inflater);
+        } else {
+            inflater.end();
+        }
+    }
+}
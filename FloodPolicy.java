@@ -0,0 +1,14 @@
+// What a client's handler does with messages beyond its flood limit (chat.flood.rate)
+public enum FloodPolicy {
+    // Stop reading from the client until the limiter has a token, so its sends back up in TCP
+    DELAY,
+    // Discard the message and tell the client (at most once a second)
+    DROP,
+    // Send a reason frame and disconnect the client
+    KICK;
+
+    // Parses names like "drop" or "KICK"
+    public static FloodPolicy fromName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
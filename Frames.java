@@ -0,0 +1,119 @@
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+// Encodes and decodes the writeUTF wire format (2-byte length + modified UTF-8) on ByteBuffers
+public final class Frames {
+
+    // Largest payload writeUTF can carry
+    public static final int MAX_UTF_LENGTH = 65535;
+
+    private Frames() {
+    }
+
+    // Encodes a message exactly like DataOutputStream.writeUTF would
+    public static ByteBuffer encode(String message) throws UTFDataFormatException {
+        int utfLength = utfLength(message);
+        if (utfLength > MAX_UTF_LENGTH) {
+            throw new UTFDataFormatException("Encoded string too long: " + utfLength + " bytes");
+        }
+
+        byte[] frame = new byte[utfLength + 2];
+        frame[0] = (byte) (utfLength >>> 8);
+        frame[1] = (byte) utfLength;
+        int pos = 2;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                frame[pos++] = (byte) c;
+            } else if (c > 0x07FF) {
+                frame[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                frame[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                frame[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                frame[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                frame[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return ByteBuffer.wrap(frame);
+    }
+
+    // Encodes a frame meant to be shared by many recipients, optionally off-heap.
+    // Shared frames are never modified; writers that need a position work on a duplicate()
+    public static ByteBuffer encode(String message, boolean direct) throws UTFDataFormatException {
+        ByteBuffer frame = encode(message);
+        if (!direct) {
+            return frame;
+        }
+        ByteBuffer offHeap = ByteBuffer.allocateDirect(frame.remaining());
+        offHeap.put(frame).flip();
+        return offHeap;
+    }
+
+    // Returns the number of modified UTF-8 bytes needed for the string
+    static int utfLength(String message) {
+        int length = 0;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    // Returns the total size of the next frame, or -1 if the length prefix is not buffered yet
+    public static int frameLength(ByteBuffer in) {
+        if (in.remaining() < 2) {
+            return -1;
+        }
+        int pos = in.position();
+        return (((in.get(pos) & 0xFF) << 8) | (in.get(pos + 1) & 0xFF)) + 2;
+    }
+
+    // Decodes one complete frame, or returns null (without consuming) if it is not fully buffered
+    public static String decode(ByteBuffer in) throws UTFDataFormatException {
+        int frameLength = frameLength(in);
+        if (frameLength < 0 || in.remaining() < frameLength) {
+            return null;
+        }
+
+        int end = in.position() + frameLength;
+        in.position(in.position() + 2);
+        char[] chars = new char[frameLength - 2];
+        int count = 0;
+        while (in.position() < end) {
+            int b = in.get() & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                int b2 = nextContinuation(in, end);
+                chars[count++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+            } else if ((b & 0xF0) == 0xE0) {
+                int b2 = nextContinuation(in, end);
+                int b3 = nextContinuation(in, end);
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+            } else {
+                in.position(end);
+                throw new UTFDataFormatException("Malformed input around byte " + b);
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    // Reads a continuation byte of a multi-byte sequence
+    private static int nextContinuation(ByteBuffer in, int end) throws UTFDataFormatException {
+        if (in.position() >= end) {
+            throw new UTFDataFormatException("Malformed input: partial character at end");
+        }
+        int b = in.get() & 0xFF;
+        if ((b & 0xC0) != 0x80) {
+            in.position(end);
+            throw new UTFDataFormatException("Malformed input: bad continuation byte");
+        }
+        return b;
+    }
+}
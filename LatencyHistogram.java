@@ -0,0 +1,140 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear histogram in the style of HdrHistogram: exact below 128, then 64 sub-buckets per
+// power of two, so any recorded value is reported within 1/64 (about 1.6%) of its true value.
+// Recording is lock-free and allocation-free, so event-loop threads can record directly
+public final class LatencyHistogram {
+
+    private static final int LINEAR_LIMIT = 128;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private static final double[] REPORTED_PERCENTILES = {
+        0, 10, 20, 30, 40, 50, 60, 70, 75, 80, 85, 90, 95, 97.5, 99, 99.5, 99.9, 99.95, 99.99, 99.999, 100
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    // Records one value (negative values count as zero)
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(Math.max(0, value)));
+    }
+
+    // Moves every count into the target and leaves this histogram empty (interval reporting)
+    public void drainInto(LatencyHistogram target) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.getAndSet(i, 0);
+            if (count != 0) {
+                target.counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    // Adds the other histogram's counts to this one
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    // Clears every count
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    // Total number of recorded values
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    // Largest recorded value (upper edge of its bucket), 0 when empty
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return highestEquivalent(i);
+            }
+        }
+        return 0;
+    }
+
+    // Mean of the recorded values, using each bucket's midpoint
+    public double mean() {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                total += count;
+                sum += count * (double) ((lowestEquivalent(i) + highestEquivalent(i)) / 2);
+            }
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    // Value at the given percentile (0-100), 0 when empty
+    public long percentile(double percentile) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return highestEquivalent(i);
+            }
+        }
+        return max();
+    }
+
+    // Prints an HdrHistogram-like percentile distribution; values are divided by the scale (e.g. 1e6 for ns -> ms)
+    public void printPercentiles(PrintStream out, double scale) {
+        out.printf("%12s %12s %14s%n", "Value", "Percentile", "1/(1-Percentile)");
+        for (double percentile : REPORTED_PERCENTILES) {
+            String inverse = percentile < 100 ? String.format("%.1f", 100.0 / (100.0 - percentile)) : "";
+            out.printf("%12.3f %12.4f %14s%n", percentile(percentile) / scale, percentile / 100.0, inverse);
+        }
+        out.printf("#[Mean    = %12.3f, Count = %d]%n", mean() / scale, count());
+        out.printf("#[Max     = %12.3f]%n", max() / scale);
+    }
+
+    // Bucket index for a non-negative value
+    static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    // Smallest value that lands in the bucket
+    static long lowestEquivalent(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int offset = index - LINEAR_LIMIT;
+        int shift = offset / SUB_BUCKETS + 1;
+        return (long) (offset % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    // Largest value that lands in the bucket
+    static long highestEquivalent(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        return lowestEquivalent(index) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,642 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+// Headless load-test client speaking Client1's protocol (writeUTF name, then writeUTF messages).
+// Opens many connections from one process on a few selector threads, sends timestamped messages at
+// a fixed total rate and records end-to-end latency when the broadcast echo reaches the other clients.
+//
+//   java -Dload.clients=2000 -Dload.rate=2000 -Dload.rampup.s=10 -Dload.churn.per.sec=5 \
+//        -cp target/client-server-chat-1.0-SNAPSHOT.jar LoadGenerator
+public class LoadGenerator {
+
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+    // Server address
+    static final String HOST = System.getProperty("load.host", "localhost");
+    static final int PORT = ServerConfig.intProperty("load.port", ServerConfig.PORT);
+
+    // Comma-separated ports of several cluster nodes on load.host; clients are spread over them by name
+    static final String PORTS = System.getProperty("load.ports", "");
+
+    // Concurrent connections to hold open
+    static final int CLIENTS = ServerConfig.intProperty("load.clients", 100);
+
+    // Messages per second across all connections (0 only connects and listens)
+    static final int RATE = ServerConfig.intProperty("load.rate", 100);
+
+    // Time over which the connections are opened
+    static final int RAMPUP_SECONDS = ServerConfig.intProperty("load.rampup.s", 5);
+
+    // Length of the measured run after ramp-up
+    static final int DURATION_SECONDS = ServerConfig.intProperty("load.duration.s", 30);
+
+    // Connections per second that leave (sending "exit") and are replaced by a new client
+    static final int CHURN_PER_SECOND = ServerConfig.intProperty("load.churn.per.sec", 0);
+
+    // Connections per second dropped without "exit" that reconnect at once resuming their session (v2 only)
+    static final int FLAP_PER_SECOND = ServerConfig.intProperty("load.flap.per.sec", 0);
+
+    // Approximate size of each chat message
+    static final int MESSAGE_BYTES = ServerConfig.intProperty("load.message.bytes", 64);
+
+    // Selector threads driving the connections
+    static final int IO_THREADS = ServerConfig.intProperty("load.io.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    // Seconds between interval reports
+    static final int REPORT_SECONDS = ServerConfig.intProperty("load.report.s", 5);
+
+    // "legacy" (writeUTF) or "v2" (binary frames, see WireProtocol)
+    static final boolean V2 = "v2".equalsIgnoreCase(System.getProperty("load.protocol", "legacy").trim());
+
+    // Ask for per-message compression (v2 only)
+    static final boolean COMPRESS = Boolean.getBoolean("load.compress");
+
+    // Rooms the clients are spread over round-robin (0 keeps everyone in the lobby)
+    static final int ROOMS = ServerConfig.intProperty("load.rooms", 0);
+
+    // Messages a connection may have waiting for the socket before further sends are dropped
+    static final int MAX_PENDING = ServerConfig.intProperty("load.max.pending", 256);
+
+    private static final String STAMP = ": t ";
+
+    private final InetSocketAddress[] addresses = addresses();
+    private final Loop[] loops = new Loop[Math.max(1, IO_THREADS)];
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder sendsDropped = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder resumes = new LongAdder();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final int paddingLength;
+    private final long sendIntervalNanos;
+
+    public LoadGenerator() {
+        int fixed = "t ".length() + 20;
+        paddingLength = Math.max(0, MESSAGE_BYTES - fixed);
+        sendIntervalNanos = RATE > 0 ? TimeUnit.SECONDS.toNanos(CLIENTS) / RATE : 0;
+    }
+
+    // load.ports when given, otherwise the single load.port
+    private static InetSocketAddress[] addresses() {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String port : PORTS.split(",")) {
+            if (!port.isBlank()) {
+                addresses.add(new InetSocketAddress(HOST, Integer.parseInt(port.trim())));
+            }
+        }
+        if (addresses.isEmpty()) {
+            addresses.add(new InetSocketAddress(HOST, PORT));
+        }
+        return addresses.toArray(new InetSocketAddress[0]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+    }
+
+    // Ramps up, runs for the configured duration with churn, then prints the final report
+    public void run() throws IOException, InterruptedException {
+        System.out.printf("Load: %d clients in %d rooms -> %s (%s), %d msg/s total, ramp-up %ds, run %ds, churn %d/s, flap %d/s, %d io threads%n",
+                CLIENTS, Math.max(1, ROOMS), addresses.length == 1 ? addresses[0] : List.of(addresses), V2 ? (COMPRESS ? "v2+deflate" : "v2") : "legacy", RATE, RAMPUP_SECONDS,
+                DURATION_SECONDS, CHURN_PER_SECOND, FLAP_PER_SECOND, loops.length);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop("load-loop-" + i);
+            loops[i].thread.start();
+        }
+
+        long start = System.nanoTime();
+        long rampNanos = TimeUnit.SECONDS.toNanos(RAMPUP_SECONDS);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+        Interval interval = new Interval(start);
+
+        for (int i = 0; i < CLIENTS; i++) {
+            long due = start + rampNanos * i / CLIENTS;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            open();
+            if (System.nanoTime() >= nextReport) {
+                interval.report("ramp");
+                nextReport += TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+            }
+        }
+
+        // Latency from the ramp-up is discarded so the summary covers the steady state
+        for (Loop loop : loops) {
+            loop.histogram.reset();
+        }
+        total.reset();
+        interval = new Interval(System.nanoTime());
+
+        long runStart = System.nanoTime();
+        long sentAtStart = sent.sum();
+        long receivedAtStart = received.sum();
+        long bytesAtStart = bytesReceived.sum();
+        long end = runStart + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        double churnOwed = 0;
+        double flapOwed = 0;
+        long lastTick = runStart;
+        while (System.nanoTime() < end) {
+            TimeUnit.MILLISECONDS.sleep(100);
+            long now = System.nanoTime();
+            churnOwed += CHURN_PER_SECOND * (now - lastTick) / 1e9;
+            flapOwed += FLAP_PER_SECOND * (now - lastTick) / 1e9;
+            lastTick = now;
+            for (; churnOwed >= 1; churnOwed--) {
+                Loop loop = loops[ThreadLocalRandom.current().nextInt(loops.length)];
+                loop.execute(loop::churnOne);
+            }
+            for (; flapOwed >= 1; flapOwed--) {
+                Loop loop = loops[ThreadLocalRandom.current().nextInt(loops.length)];
+                loop.execute(loop::flapOne);
+            }
+            if (now >= nextReport) {
+                interval.report("run");
+                nextReport += TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+            }
+        }
+        interval.report("run");
+
+        for (Loop loop : loops) {
+            loop.shutdown();
+        }
+        for (Loop loop : loops) {
+            loop.thread.join(2000);
+        }
+        printSummary(System.nanoTime() - runStart, sent.sum() - sentAtStart, received.sum() - receivedAtStart,
+                bytesReceived.sum() - bytesAtStart);
+    }
+
+    // Opens one new client on the next loop
+    private void open() {
+        int id = nextId.getAndIncrement();
+        Loop loop = loops[id % loops.length];
+        loop.execute(() -> loop.connect(id));
+    }
+
+    // Words for message padding: random text compresses roughly like chat does, and none of them
+    // contain an auto-responder keyword or a character the symbol filter blocks
+    private static final String[] WORDS = {
+        "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "and", "runs", "across",
+        "green", "field", "under", "clear", "sky", "every", "day", "we", "meet", "at", "noon"
+    };
+
+    // Builds a message carrying its send time in nanoseconds, padded with words to the configured size
+    private String stampedMessage(long nanos) {
+        StringBuilder message = new StringBuilder(MESSAGE_BYTES + 16).append("t ").append(nanos);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int target = message.length() + paddingLength;
+        while (message.length() < target) {
+            message.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return message.toString();
+    }
+
+    // Prints the steady-state totals and the full latency distribution
+    private void printSummary(long elapsedNanos, long sentInRun, long receivedInRun, long bytesInRun) {
+        for (Loop loop : loops) {
+            loop.histogram.drainInto(total);
+        }
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf("Sent %d (%.0f msg/s), received %d (%.0f msg/s, %.0f KB/s), dropped sends %d, connects %d, resumed %d, refused %d, failures %d%n",
+                sentInRun, sentInRun / seconds, receivedInRun, receivedInRun / seconds, bytesInRun / seconds / 1024,
+                sendsDropped.sum(), connects.sum(), resumes.sum(), rejected.sum(), failures.sum());
+        System.out.println("End-to-end broadcast latency (ms):");
+        total.printPercentiles(System.out, 1e6);
+    }
+
+    // Interval counters between two reports
+    private final class Interval {
+        private long since;
+        private long sentBefore;
+        private long receivedBefore;
+        private long bytesBefore;
+
+        Interval(long since) {
+            this.since = since;
+            this.sentBefore = sent.sum();
+            this.receivedBefore = received.sum();
+            this.bytesBefore = bytesReceived.sum();
+        }
+
+        // Prints throughput and latency percentiles since the previous report
+        void report(String phase) {
+            LatencyHistogram window = new LatencyHistogram();
+            for (Loop loop : loops) {
+                loop.histogram.drainInto(window);
+            }
+            total.add(window);
+
+            long now = System.nanoTime();
+            double seconds = Math.max(1, now - since) / 1e9;
+            long sentNow = sent.sum();
+            long receivedNow = received.sum();
+            long bytesNow = bytesReceived.sum();
+            System.out.printf("[%s] connected %d | sent %.0f/s | received %.0f/s %.0f KB/s | latency ms p50 %.2f p90 %.2f p99 %.2f p99.9 %.2f max %.2f%n",
+                    phase, connected.get(), (sentNow - sentBefore) / seconds, (receivedNow - receivedBefore) / seconds,
+                    (bytesNow - bytesBefore) / seconds / 1024,
+                    window.percentile(50) / 1e6, window.percentile(90) / 1e6, window.percentile(99) / 1e6,
+                    window.percentile(99.9) / 1e6, window.max() / 1e6);
+            since = now;
+            sentBefore = sentNow;
+            receivedBefore = receivedNow;
+            bytesBefore = bytesNow;
+        }
+    }
+
+    // A selector thread owning a share of the connections and their send schedule
+    private final class Loop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Connection> schedule = new PriorityQueue<>((a, b) -> Long.compare(a.nextSend, b.nextSend));
+        private final List<Connection> live = new ArrayList<>();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private volatile boolean active = true;
+
+        Loop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        // Runs a task on the loop thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            active = false;
+            selector.wakeup();
+        }
+
+        // Starts a non-blocking connect for a new client
+        void connect(int id) {
+            connect("load" + id, ROOMS > 0 ? "load" + id % ROOMS : null, null, 0);
+        }
+
+        // Starts a non-blocking connect, resuming a session when a token is given
+        void connect(String name, String room, String resume, long since) {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(this, channel, name, room, resume, since);
+                // A name always maps to the same node, where its session lives
+                if (channel.connect(addresses[Math.floorMod(name.hashCode(), addresses.length)])) {
+                    connection.key = channel.register(selector, 0, connection);
+                    connection.onConnected();
+                } else {
+                    connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                }
+            } catch (IOException e) {
+                failures.increment();
+                logger.fine("Connect failed: " + e.getMessage());
+            }
+        }
+
+        // One connected client says "exit" and a replacement is opened
+        void churnOne() {
+            if (!live.isEmpty()) {
+                live.get(ThreadLocalRandom.current().nextInt(live.size())).leave();
+                open();
+            }
+        }
+
+        // One connected client loses its connection without "exit" and reconnects resuming its session
+        void flapOne() {
+            if (!live.isEmpty()) {
+                Connection connection = live.get(ThreadLocalRandom.current().nextInt(live.size()));
+                if (connection.session != null) {
+                    connection.close();
+                    connect(connection.name, connection.room, connection.session, connection.lastSeen);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (active) {
+                try {
+                    long timeoutMillis = 0;
+                    if (tasks.isEmpty()) {
+                        Connection next = schedule.peek();
+                        timeoutMillis = next == null ? 1000 : TimeUnit.NANOSECONDS.toMillis(next.nextSend - System.nanoTime());
+                    }
+                    if (timeoutMillis > 0) {
+                        selector.select(timeoutMillis);
+                    } else {
+                        selector.selectNow();
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isConnectable()) {
+                            connection.onConnectable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    sendDue();
+                } catch (IOException e) {
+                    logger.warning("Load loop error: " + e.getMessage());
+                }
+            }
+
+            for (Connection connection : new ArrayList<>(live)) {
+                connection.leave();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.warning("Error closing selector: " + e.getMessage());
+            }
+        }
+
+        // Sends every message whose time has come and reschedules its connection
+        private void sendDue() {
+            long now = System.nanoTime();
+            Connection next;
+            while ((next = schedule.peek()) != null && next.nextSend <= now) {
+                schedule.poll();
+                if (next.key == null || !next.key.isValid()) {
+                    continue;
+                }
+                next.send(stampedMessage(System.nanoTime()));
+                long interval = sendIntervalNanos;
+                if (interval > 0) {
+                    // Fixed-rate schedule; a loop that fell behind skips ahead instead of bursting
+                    next.nextSend = Math.max(next.nextSend + interval, now - interval);
+                    schedule.add(next);
+                }
+            }
+        }
+
+        // Records a received legacy frame and, for load messages, its end-to-end latency
+        void onFrame(String message) {
+            received.increment();
+            int stamp = message.indexOf(STAMP);
+            if (stamp >= 0) {
+                recordLatency(message, stamp + STAMP.length());
+            }
+        }
+
+        // Records a received v2 frame; chat text from load clients starts with the stamp
+        void onFrame(ChatMessage message) {
+            received.increment();
+            if (message.type == WireProtocol.CHAT && message.text.startsWith("t ")) {
+                recordLatency(message.text, 2);
+            }
+        }
+
+        // Parses the send time starting at index i and records the time since then
+        private void recordLatency(String message, int i) {
+            long sentAt = 0;
+            boolean negative = false;
+            if (i < message.length() && message.charAt(i) == '-') {
+                negative = true;
+                i++;
+            }
+            for (; i < message.length(); i++) {
+                char c = message.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                sentAt = sentAt * 10 + (c - '0');
+            }
+            histogram.record(System.nanoTime() - (negative ? -sentAt : sentAt));
+        }
+    }
+
+    // One simulated client
+    private final class Connection {
+
+        private final Loop loop;
+        private final SocketChannel channel;
+        private final String name;
+        // Room joined right after the handshake, or null to stay in the lobby
+        private final String room;
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        private SelectionKey key;
+        private long nextSend;
+        private long seq;
+        private boolean helloSeen;
+        private boolean deflate;
+        // Session token from the server's HELLO, and the session this connection resumes
+        private String session;
+        private final String resume;
+        // Highest server seq received
+        private long lastSeen;
+
+        Connection(Loop loop, SocketChannel channel, String name, String room, String resume, long since) {
+            this.loop = loop;
+            this.channel = channel;
+            this.name = name;
+            this.room = room;
+            this.resume = resume;
+            this.lastSeen = since;
+        }
+
+        void onConnectable() {
+            try {
+                channel.finishConnect();
+                onConnected();
+            } catch (IOException e) {
+                failures.increment();
+                logger.fine("Connect failed for " + name + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        // Sends the name handshake (and room join), starts reading and joins the send schedule at a random offset
+        void onConnected() {
+            connects.increment();
+            connected.incrementAndGet();
+            loop.live.add(this);
+            key.interestOps(SelectionKey.OP_READ);
+            try {
+                List<String> options = new ArrayList<>();
+                if (COMPRESS) {
+                    options.add(Compression.OPTION);
+                }
+                if (resume != null) {
+                    options.add("resume=" + resume);
+                    options.add("since=" + lastSeen);
+                }
+                String hello = WireProtocol.hello(name, options.toArray(new String[0]));
+                enqueue(Frames.encode(V2 ? hello : name));
+                // A resumed session is put back in its room by the server
+                if (room != null && resume == null) {
+                    enqueue(V2 ? WireProtocol.encode(new ChatMessage(WireProtocol.ROOM_JOIN, 0, null, room), ++seq)
+                            : Frames.encode("/join " + room));
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            long interval = sendIntervalNanos;
+            if (interval > 0) {
+                nextSend = System.nanoTime() + ThreadLocalRandom.current().nextLong(interval);
+                loop.schedule.add(this);
+            }
+        }
+
+        // Sends one chat message unless the socket is already backed up
+        void send(String message) {
+            if (pending.size() >= MAX_PENDING) {
+                sendsDropped.increment();
+                return;
+            }
+            try {
+                enqueue(V2 ? WireProtocol.encode(ChatMessage.chat(null, message), ++seq, deflate, false) : Frames.encode(message));
+                sent.increment();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void enqueue(ByteBuffer frame) {
+            pending.add(frame);
+            flush();
+        }
+
+        // Writes pending frames; waits for OP_WRITE when the socket buffer is full
+        void flush() {
+            try {
+                ByteBuffer head;
+                while ((head = pending.peek()) != null) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pending.poll();
+                }
+                if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Decodes every complete frame, growing the buffer for frames larger than it
+        void onReadable() {
+            try {
+                int read = channel.read(readBuffer);
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                bytesReceived.add(read);
+                readBuffer.flip();
+                if (V2) {
+                    decodeV2();
+                } else {
+                    String message;
+                    while ((message = Frames.decode(readBuffer)) != null) {
+                        loop.onFrame(message);
+                    }
+                }
+                int needed = V2 && helloSeen ? WireProtocol.frameLength(readBuffer) : Frames.frameLength(readBuffer);
+                if (needed > readBuffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(needed);
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                } else {
+                    readBuffer.compact();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // The server's HELLO is the first v2 frame; anything before it would be a legacy reply
+        private void decodeV2() throws IOException {
+            ChatMessage message;
+            while ((message = WireProtocol.decode(readBuffer)) != null) {
+                if (!helloSeen) {
+                    if (message.type == WireProtocol.REJECT) {
+                        rejected.increment();
+                        throw new ProtocolException("Refused: " + message.text);
+                    }
+                    if (message.type != WireProtocol.HELLO) {
+                        throw new ProtocolException("Server did not accept protocol v2");
+                    }
+                    helloSeen = true;
+                    deflate = WireProtocol.hasOption(message.text, Compression.OPTION);
+                    session = WireProtocol.optionValue(message.text, "session");
+                    if (WireProtocol.hasOption(message.text, "resumed")) {
+                        resumes.increment();
+                    }
+                    continue;
+                }
+                lastSeen = Math.max(lastSeen, message.seq);
+                loop.onFrame(message);
+            }
+        }
+
+        // Says "exit" like Client1 does on close, then disconnects
+        void leave() {
+            if (key != null && key.isValid()) {
+                try {
+                    enqueue(V2 ? WireProtocol.encode(new ChatMessage(WireProtocol.EXIT, 0, null, ""), ++seq)
+                            : Frames.encode("exit"));
+                } catch (IOException e) {
+                    logger.fine("Could not send exit for " + name + ": " + e.getMessage());
+                }
+            }
+            close();
+        }
+
+        void close() {
+            if (loop.live.remove(this)) {
+                connected.decrementAndGet();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.fine("Error closing " + name + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.ArrayDeque;
+import java.util.List;
+import javax.swing.JTextArea;
+import javax.swing.text.BadLocationException;
+
+// Bounded log view for a JTextArea. Lines arrive in batches from the LogSink writer thread and
+// are held in a capped buffer; refresh() (called from a Swing Timer) applies them in a single
+// append and trims the area to its newest maxLines lines, so the EDT does a fixed amount of
+// work per tick no matter how fast the server logs
+public final class LogAreaView implements LogSink.Listener {
+
+    private final JTextArea area;
+    private final int maxLines;
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private long skipped;
+
+    public LogAreaView(JTextArea area, int maxLines) {
+        this.area = area;
+        this.maxLines = Math.max(1, maxLines);
+    }
+
+    // Buffers lines for the next refresh; past maxLines the oldest are skipped (they would be trimmed anyway)
+    @Override
+    public synchronized void onLines(List<String> lines) {
+        for (String line : lines) {
+            if (pending.size() == maxLines) {
+                pending.poll();
+                skipped++;
+            }
+            pending.add(line);
+        }
+    }
+
+    // Applies buffered lines to the text area; must run on the EDT
+    public void refresh() {
+        StringBuilder text = new StringBuilder();
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            if (skipped > 0) {
+                text.append("... ").append(skipped).append(" lines skipped ...\n");
+                skipped = 0;
+            }
+            for (String line : pending) {
+                text.append(line).append('\n');
+            }
+            pending.clear();
+        }
+
+        area.append(text.toString());
+        int excess = area.getLineCount() - 1 - maxLines;
+        if (excess > 0) {
+            try {
+                area.replaceRange(null, 0, area.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                area.setText("");
+            }
+        }
+        area.setCaretPosition(area.getDocument().getLength());
+    }
+}
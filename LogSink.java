@@ -0,0 +1,192 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+// Asynchronous server log. Callers only claim a slot in a bounded ring buffer, so logging never
+// blocks a client thread; a single writer thread drains the ring in batches, appends each batch
+// to the log file with one flush and hands it to the listeners (e.g. the GUI view).
+// When the ring is full new lines are dropped and counted rather than making callers wait
+public final class LogSink implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(LogSink.class.getName());
+
+    private static final int MAX_BATCH = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    // Receives every logged line, in order, in batches on the writer thread
+    public interface Listener {
+        void onLines(List<String> lines);
+    }
+
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final BufferedWriter file;
+    private final Thread writer;
+    private volatile boolean running = true;
+    private long droppedReported;
+
+    // Creates a sink holding up to capacity pending lines (rounded up to a power of two),
+    // appending to the given file when it is not null
+    public LogSink(int capacity, Path file) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.file = file == null ? null : Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.writer = new Thread(this::drainLoop, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Opens the sink configured by -Dchat.log.file and -Dchat.log.buffer; falls back to no file on error
+    public static LogSink fromConfig() {
+        Path path = ServerConfig.LOG_FILE == null ? null : Path.of(ServerConfig.LOG_FILE);
+        try {
+            return new LogSink(ServerConfig.LOG_BUFFER, path);
+        } catch (IOException e) {
+            logger.warning("Could not open log file " + path + ": " + e.getMessage());
+            try {
+                return new LogSink(ServerConfig.LOG_BUFFER, null);
+            } catch (IOException impossible) {
+                throw new IllegalStateException(impossible);
+            }
+        }
+    }
+
+    // Queues a line without blocking; returns false if it was dropped because the ring is full
+    public boolean log(String line) {
+        long claimed;
+        do {
+            claimed = tail.get();
+            if (claimed - head >= slots.length()) {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(claimed, claimed + 1));
+        slots.set((int) claimed & mask, line);
+        return true;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // Lines lost because the ring was full
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    // Writes out everything already logged, then stops the writer and closes the file
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writer thread: drains batches until closed and the ring is empty
+    private void drainLoop() {
+        List<String> batch = new ArrayList<>(MAX_BATCH);
+        while (running || head != tail.get()) {
+            drainTo(batch);
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            reportDropped(batch);
+            publish(batch);
+            batch.clear();
+        }
+
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.warning("Error closing log file: " + e.getMessage());
+            }
+        }
+    }
+
+    // Moves up to MAX_BATCH published lines out of the ring, stopping at a claimed but unwritten slot
+    private void drainTo(List<String> batch) {
+        long next = head;
+        long end = tail.get();
+        while (next < end && batch.size() < MAX_BATCH) {
+            int index = (int) next & mask;
+            String line = slots.get(index);
+            if (line == null) {
+                break;
+            }
+            slots.lazySet(index, null);
+            batch.add(line);
+            next++;
+        }
+        head = next;
+    }
+
+    // Notes in the log itself how many lines were lost since the last batch
+    private void reportDropped(List<String> batch) {
+        long total = dropped.sum();
+        if (total != droppedReported) {
+            batch.add("Log buffer full: " + (total - droppedReported) + " lines dropped");
+            droppedReported = total;
+        }
+    }
+
+    // Appends the batch to the file with a single flush and passes it to the listeners
+    private void publish(List<String> batch) {
+        if (file != null) {
+            String timestamp = LocalDateTime.now().format(TIMESTAMP);
+            try {
+                for (String line : batch) {
+                    file.write(timestamp);
+                    file.write(' ');
+                    file.write(line);
+                    file.newLine();
+                }
+                file.flush();
+            } catch (IOException e) {
+                logger.warning("Error writing log file: " + e.getMessage());
+            }
+        }
+
+        if (!listeners.isEmpty()) {
+            List<String> lines = Collections.unmodifiableList(new ArrayList<>(batch));
+            for (Listener listener : listeners) {
+                try {
+                    listener.onLines(lines);
+                } catch (RuntimeException e) {
+                    logger.warning("Log listener failed: " + e);
+                }
+            }
+        }
+    }
+}
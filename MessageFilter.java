@@ -0,0 +1,6 @@
+// A stage of the inbound message pipeline run before a message is broadcast
+public interface MessageFilter {
+
+    // Returns null to let the message through, or the reason shown to the sender when it is blocked
+    String check(String message);
+}
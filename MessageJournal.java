@@ -0,0 +1,475 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// Append-only journal of everything the server broadcasts, so reconnecting v2 clients can catch up
+// on what they missed. Records go into fixed-size segment files written through a memory map:
+// an append is a copy into the page cache under the journal lock, and a background thread forces
+// all records written since its last pass to disk at once (group commit), so broadcasts never
+// wait for fsync. Each record is
+//
+//   [length: int][seq: long][room length: short][room: UTF-8][v2 frame, uncompressed]
+//
+// with an empty room for server-wide notices. Segments are named after their first seq and keep
+// a sparse in-memory index (one seq -> offset entry per INDEX_INTERVAL bytes) that is rebuilt by
+// scanning the segments on startup. Replay walks back from the newest record one index interval
+// at a time until it has its room's newest messages, so a client that dropped recently reads
+// little; it hands out read-only slices of the mapped segments, which the outbound queues write
+// straight from the page cache. Whole segments are deleted once the journal exceeds its size
+// limit or a segment is older than the retention time
+public final class MessageJournal implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(MessageJournal.class.getName());
+
+    private static final String SUFFIX = ".journal";
+    private static final int HEADER_BYTES = 4 + 8 + 2;
+    private static final int INDEX_INTERVAL = 4096;
+    // Sent ahead of a replay that had to leave older messages of the room out
+    private static final String TRUNCATED_NOTICE = "... earlier messages not replayed ...";
+
+    // Receives replayed frames in order
+    public interface FrameSink {
+        void accept(ByteBuffer frame) throws IOException;
+    }
+
+    // History collect() found for one client, completed under the journal's monitor by replay()
+    public static final class Replay {
+        private final long since;
+        private final byte[] room;
+        // Oldest first
+        private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+        // Journal's last seq when collect() started
+        private long scanned;
+        // Set when messages of the room after since were left out
+        private boolean truncated;
+
+        private Replay(long since, byte[] room) {
+            this.since = since;
+            this.room = room;
+        }
+    }
+
+    // A segment's records and index as far as they were written when a replay started
+    private static final class SegmentView {
+        final Segment segment;
+        final int limit;
+        final long[] indexSeqs;
+        final int[] indexOffsets;
+        final int indexSize;
+
+        // Under the journal's monitor; appends only add index entries, and a grown array keeps the old prefix
+        SegmentView(Segment segment) {
+            this.segment = segment;
+            this.limit = segment.limit;
+            this.indexSeqs = segment.indexSeqs;
+            this.indexOffsets = segment.indexOffsets;
+            this.indexSize = segment.indexSize;
+        }
+    }
+
+    // One segment file and its sparse index
+    private static final class Segment {
+        final Path path;
+        final long baseSeq;
+        final MappedByteBuffer buffer;
+        // End of the complete records (guarded by the journal)
+        int limit;
+        long lastSeq;
+        long lastAppendMillis;
+        // Bytes already forced to disk (sync thread only)
+        int forced;
+        long[] indexSeqs = new long[16];
+        int[] indexOffsets = new int[16];
+        int indexSize;
+
+        Segment(Path path, long baseSeq, MappedByteBuffer buffer) {
+            this.path = path;
+            this.baseSeq = baseSeq;
+            this.buffer = buffer;
+        }
+
+        void index(long seq, int offset) {
+            if (indexSize > 0 && offset - indexOffsets[indexSize - 1] < INDEX_INTERVAL) {
+                return;
+            }
+            if (indexSize == indexSeqs.length) {
+                indexSeqs = Arrays.copyOf(indexSeqs, indexSize * 2);
+                indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+            }
+            indexSeqs[indexSize] = seq;
+            indexOffsets[indexSize] = offset;
+            indexSize++;
+        }
+
+        // Offset of the last indexed record with a seq not above the given one (0 if none)
+        int offsetBefore(long seq) {
+            int low = 0;
+            int high = indexSize - 1;
+            int offset = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexSeqs[mid] <= seq) {
+                    offset = indexOffsets[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return offset;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final long syncNanos;
+    private final int replayMax;
+    private final long replayScanBytes;
+    // Oldest first; the last one takes appends (guarded by this)
+    private final List<Segment> segments = new ArrayList<>();
+    private long lastSeq;
+    private final Thread syncer;
+    private volatile boolean running = true;
+
+    // Opens (or creates) the journal in a directory, recovering the records already there
+    public MessageJournal(Path directory, int segmentBytes, long retentionBytes, long retentionMillis,
+            long syncMillis, int replayMax, long replayScanBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = Math.max(segmentBytes, 2 * (ServerConfig.MAX_PAYLOAD_BYTES + 1024));
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncMillis));
+        this.replayMax = replayMax;
+        this.replayScanBytes = replayScanBytes;
+        recover();
+        this.syncer = new Thread(this::syncLoop, "journal-sync");
+        this.syncer.setDaemon(true);
+        this.syncer.start();
+    }
+
+    // Opens the journal configured by -Dchat.journal.*, or returns null when it is disabled
+    public static MessageJournal fromConfig() throws IOException {
+        if (ServerConfig.JOURNAL_DIR == null) {
+            return null;
+        }
+        return new MessageJournal(Path.of(ServerConfig.JOURNAL_DIR), ServerConfig.JOURNAL_SEGMENT_BYTES,
+                ServerConfig.JOURNAL_RETENTION_BYTES, TimeUnit.HOURS.toMillis(ServerConfig.JOURNAL_RETENTION_HOURS),
+                ServerConfig.JOURNAL_SYNC_MS, ServerConfig.JOURNAL_REPLAY_MAX, ServerConfig.JOURNAL_REPLAY_SCAN_MB * 1024L * 1024L);
+    }
+
+    // Maps the existing segments and finds the end of the valid records in each
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+        for (Path path : files) {
+            String name = path.getFileName().toString();
+            long baseSeq;
+            try {
+                baseSeq = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                logger.warning("Ignoring unexpected journal file " + path);
+                continue;
+            }
+            Segment segment = new Segment(path, baseSeq, map(path, Files.size(path)));
+            scan(segment);
+            segment.forced = segment.limit;
+            segment.lastAppendMillis = Files.getLastModifiedTime(path).toMillis();
+            segments.add(segment);
+        }
+    }
+
+    // Rebuilds a segment's index, stopping at the first record that is incomplete or out of order
+    private void scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int pos = 0;
+        long previous = lastSeq;
+        while (pos + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(pos);
+            if (length < HEADER_BYTES || length > buffer.capacity() - pos) {
+                break;
+            }
+            long seq = buffer.getLong(pos + 4);
+            int roomLength = buffer.getShort(pos + 12);
+            int frameStart = pos + HEADER_BYTES + roomLength;
+            if (seq <= previous || roomLength < 0 || frameStart > pos + length
+                    || !isFrame(buffer.slice(frameStart, pos + length - frameStart))) {
+                break;
+            }
+            segment.index(seq, pos);
+            segment.lastSeq = seq;
+            previous = seq;
+            pos += length;
+        }
+        segment.limit = pos;
+        lastSeq = Math.max(lastSeq, previous);
+    }
+
+    private static boolean isFrame(ByteBuffer frame) {
+        try {
+            return WireProtocol.frameLength(frame) == frame.remaining();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    // Highest seq in the journal; the server continues numbering after it
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    // Appends one broadcast frame. Callers number and append under the journal's monitor so that
+    // records are in seq order
+    public synchronized void append(long seq, String room, ByteBuffer frame) throws IOException {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_BYTES + roomBytes.length + frame.remaining();
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || active.buffer.capacity() - active.limit < length) {
+            active = roll(seq);
+        }
+
+        MappedByteBuffer buffer = active.buffer;
+        int pos = active.limit;
+        buffer.putLong(pos + 4, seq);
+        buffer.putShort(pos + 12, (short) roomBytes.length);
+        buffer.put(pos + HEADER_BYTES, roomBytes);
+        buffer.put(pos + HEADER_BYTES + roomBytes.length, frame, frame.position(), frame.remaining());
+        // Length last: until it is written the record reads as the end of the log
+        buffer.putInt(pos, length);
+
+        active.index(seq, pos);
+        active.limit = pos + length;
+        active.lastSeq = seq;
+        active.lastAppendMillis = System.currentTimeMillis();
+        lastSeq = seq;
+    }
+
+    // Starts a new segment whose first record has the given seq
+    private Segment roll(long seq) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", seq, SUFFIX));
+        Segment segment = new Segment(path, seq, map(path, segmentBytes));
+        segments.add(segment);
+        return segment;
+    }
+
+    // Both steps of a replay at once, for callers that may wait for the scan
+    public long replay(long since, String room, FrameSink sink, LongConsumer caughtUp) throws IOException {
+        return replay(collect(since, room), sink, caughtUp);
+    }
+
+    // Finds the room's records (and the server-wide ones) after since, keeping its newest
+    // chat.journal.replay.max. Walks back from the newest record one index interval at a time and
+    // stops once it has enough, reached since, or read chat.journal.replay.scan.mb; running out of
+    // budget or reaching records retention already deleted marks the replay truncated. Reads
+    // without the journal's monitor, as records below a segment's limit never change, so this may
+    // run on any thread while broadcasts go on
+    public Replay collect(long since, String room) {
+        Replay replay = new Replay(since, room.getBytes(StandardCharsets.UTF_8));
+        List<SegmentView> views = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                views.add(new SegmentView(segment));
+            }
+            replay.scanned = lastSeq;
+        }
+
+        long budget = replayScanBytes;
+        List<ByteBuffer> interval = new ArrayList<>();
+        long oldestSeq = Long.MAX_VALUE;
+        for (int i = views.size() - 1; i >= 0; i--) {
+            SegmentView view = views.get(i);
+            for (int k = view.indexSize - 1; k >= 0; k--) {
+                int start = view.indexOffsets[k];
+                int end = k + 1 < view.indexSize ? view.indexOffsets[k + 1] : view.limit;
+                interval.clear();
+                addRecords(view.segment.buffer, start, end, since, replay.room, interval);
+                for (int j = interval.size() - 1; j >= 0; j--) {
+                    replay.frames.addFirst(interval.get(j));
+                }
+                if (replay.frames.size() > replayMax) {
+                    return replay;
+                }
+                // Everything before an interval starting at or below since+1 is older than since
+                if (view.indexSeqs[k] <= since + 1) {
+                    return replay;
+                }
+                budget -= end - start;
+                if (budget <= 0) {
+                    replay.truncated = true;
+                    return replay;
+                }
+                oldestSeq = view.indexSeqs[k];
+            }
+        }
+        replay.truncated = oldestSeq != Long.MAX_VALUE && oldestSeq > since + 1;
+        return replay;
+    }
+
+    // Completes a collected replay under the journal's monitor: adds the room's records appended
+    // since collect(), passes a notice first if older messages were left out and then the frames
+    // to the sink, calls caughtUp with the last seq in the journal and returns it. No broadcast is
+    // numbered in between, so a caller that becomes a recipient in caughtUp misses nothing
+    public synchronized long replay(Replay replay, FrameSink sink, LongConsumer caughtUp) throws IOException {
+        ArrayDeque<ByteBuffer> frames = replay.frames;
+        if (lastSeq > replay.scanned) {
+            collectAfter(Math.max(replay.since, replay.scanned), replay.room, frames);
+        }
+        boolean truncated = replay.truncated;
+        while (frames.size() > replayMax) {
+            frames.removeFirst();
+            truncated = true;
+        }
+        if (truncated) {
+            sink.accept(WireProtocol.encode(ChatMessage.system(TRUNCATED_NOTICE), 0));
+        }
+        for (ByteBuffer frame : frames) {
+            sink.accept(frame);
+        }
+        caughtUp.accept(lastSeq);
+        return lastSeq;
+    }
+
+    // Adds the room's records with a seq above after (caller holds the monitor). Starts at the
+    // segment and indexed offset just before after
+    private void collectAfter(long after, byte[] roomBytes, ArrayDeque<ByteBuffer> frames) {
+        int first = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).baseSeq <= after + 1) {
+                first = i;
+            }
+        }
+        List<ByteBuffer> added = new ArrayList<>();
+        for (int i = first; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            addRecords(segment.buffer, segment.offsetBefore(after + 1), segment.limit, after, roomBytes, added);
+        }
+        frames.addAll(added);
+    }
+
+    // Adds the records between two offsets that have a seq above after and belong to the room
+    private static void addRecords(MappedByteBuffer buffer, int pos, int end, long after, byte[] roomBytes,
+            List<ByteBuffer> frames) {
+        while (pos < end) {
+            int length = buffer.getInt(pos);
+            int roomLength = buffer.getShort(pos + 12);
+            if (buffer.getLong(pos + 4) > after && inRoom(buffer, pos + HEADER_BYTES, roomLength, roomBytes)) {
+                int frameStart = pos + HEADER_BYTES + roomLength;
+                frames.add(buffer.slice(frameStart, pos + length - frameStart).asReadOnlyBuffer());
+            }
+            pos += length;
+        }
+    }
+
+    // True for a record of the given room or a server-wide one
+    private static boolean inRoom(ByteBuffer buffer, int offset, int length, byte[] room) {
+        if (length == 0) {
+            return true;
+        }
+        if (length != room.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != room[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Sync thread: forces new records to disk and applies retention every chat.journal.sync.ms
+    private void syncLoop() {
+        while (running) {
+            LockSupport.parkNanos(syncNanos);
+            sync();
+            applyRetention();
+        }
+    }
+
+    // Group commit: one force per segment covers every record appended since the last pass
+    private void sync() {
+        List<Segment> dirty = new ArrayList<>();
+        List<Integer> limits = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.forced < segment.limit) {
+                    dirty.add(segment);
+                    limits.add(segment.limit);
+                }
+            }
+        }
+        for (int i = 0; i < dirty.size(); i++) {
+            Segment segment = dirty.get(i);
+            int limit = limits.get(i);
+            segment.buffer.force(segment.forced, limit - segment.forced);
+            segment.forced = limit;
+        }
+    }
+
+    // Deletes the oldest segments while the journal is over its size limit or they are too old;
+    // the active segment is always kept
+    private void applyRetention() {
+        List<Segment> expired = new ArrayList<>();
+        synchronized (this) {
+            long total = 0;
+            for (Segment segment : segments) {
+                total += segment.limit;
+            }
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            while (segments.size() > 1) {
+                Segment oldest = segments.get(0);
+                boolean tooBig = retentionBytes > 0 && total > retentionBytes;
+                boolean tooOld = retentionMillis > 0 && oldest.lastAppendMillis < cutoff;
+                if (!tooBig && !tooOld) {
+                    break;
+                }
+                segments.remove(0);
+                total -= oldest.limit;
+                expired.add(oldest);
+            }
+        }
+        // Replay slices keep the mapping alive; deleting the file only unlinks it
+        for (Segment segment : expired) {
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                logger.warning("Could not delete journal segment " + segment.path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Stops the sync thread and forces everything written so far
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(syncer);
+        try {
+            syncer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.ArrayDeque;
+import javax.swing.AbstractListModel;
+
+// Bounded message history for Client1's JList. Any thread may add lines; they wait in a pending
+// queue until flush() (a Swing Timer tick, about once per frame) moves them into a ring buffer of
+// the newest capacity lines and fires one coalesced change. The list uses a fixed cell size, so
+// it only lays out and paints the visible rows however many lines arrive or are kept
+public final class MessageListModel extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] ring;
+    // Index of the oldest line and number of lines held (EDT only)
+    private int head;
+    private int size;
+    // Lines not yet shown and how many were skipped because more arrived than the ring holds
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private long skipped;
+
+    public MessageListModel(int capacity) {
+        this.ring = new String[Math.max(1, capacity)];
+    }
+
+    // Queues a message for the next flush, one entry per line; safe from any thread
+    public void add(String text) {
+        synchronized (pending) {
+            int start = 0;
+            for (int end = text.indexOf('\n'); end >= 0; end = text.indexOf('\n', start)) {
+                queue(text.substring(start, end));
+                start = end + 1;
+            }
+            queue(text.substring(start));
+        }
+    }
+
+    // Past capacity the oldest pending lines are skipped (they would fall out of the ring anyway)
+    private void queue(String line) {
+        if (pending.size() == ring.length) {
+            pending.poll();
+            skipped++;
+        }
+        pending.add(line);
+    }
+
+    // Moves pending lines into the ring and notifies the list once; must run on the EDT.
+    // Returns how many of the oldest lines were dropped to make room (0 if nothing changed)
+    public int flush() {
+        String[] lines;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            // The skipped lines were older than everything still pending
+            int marker = skipped > 0 ? 1 : 0;
+            lines = new String[marker + pending.size()];
+            if (marker > 0) {
+                lines[0] = "... " + skipped + " messages skipped ...";
+                skipped = 0;
+            }
+            int i = marker;
+            for (String line : pending) {
+                lines[i++] = line;
+            }
+            pending.clear();
+        }
+
+        int oldSize = size;
+        int dropped = Math.max(0, size + lines.length - ring.length);
+        for (String line : lines) {
+            if (size == ring.length) {
+                ring[head] = line;
+                head = (head + 1) % ring.length;
+            } else {
+                ring[(head + size) % ring.length] = line;
+                size++;
+            }
+        }
+        // Report the oldest rows leaving and the new ones arriving as separate events, so the list
+        // shifts its selection instead of treating every row as changed
+        int removed = Math.min(dropped, oldSize);
+        if (removed > 0) {
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+        fireIntervalAdded(this, oldSize - removed, size - 1);
+        return dropped;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return ring[(head + index) % ring.length];
+    }
+}
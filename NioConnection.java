@@ -0,0 +1,398 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+
+// One non-blocking client channel: frames inbound bytes and queues outbound frames. The bytes go
+// through a Transport: the channel itself, or TLS over it when the server has a certificate
+final class NioConnection {
+
+    // Plaintext stream over the channel, with the channel's read and gathering-write contract
+    interface Transport {
+        // Reads into dst; returns the bytes added, or -1 at end of stream
+        int read(ByteBuffer dst) throws IOException;
+
+        // Writes from srcs; returns the bytes taken, which may be fewer than offered
+        long write(ByteBuffer[] srcs, int offset, int length) throws IOException;
+
+        // False while application data must wait for something other than the socket (a TLS
+        // handshake); the transport then resumes the connection itself
+        boolean canWrite();
+
+        // Writes what the transport buffered itself; false if the socket did not take all of it
+        boolean flush() throws IOException;
+
+        // Free space read() needs in dst to deliver input it already holds (0 if it holds none)
+        int pendingInputSpace();
+
+        // Last words before the channel is closed
+        void shutdown();
+    }
+
+    private static final Logger logger = Logger.getLogger(NioConnection.class.getName());
+    private static final int INITIAL_READ_BUFFER = 1024;
+
+    private final SocketChannel channel;
+    private final NioServerEngine.EventLoop loop;
+    private final ChatServer server;
+    private final ServerMetrics metrics;
+    private final OutboundQueue outbound;
+    private final Transport transport;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private final ByteBuffer[] batch = new ByteBuffer[ServerConfig.BATCH_MAX_FRAMES];
+    private int batchStart;
+    private int batchEnd;
+    private SelectionKey key;
+    private ServerClient1handler handler;
+    private boolean handshakeDone;
+    // Set while the DELAY flood policy holds a frame back; reads stay off until it is processed
+    private boolean readsPaused;
+
+    NioConnection(SocketChannel channel, NioServerEngine.EventLoop loop, ChatServer server) {
+        this.channel = channel;
+        this.loop = loop;
+        this.server = server;
+        this.metrics = server.getMetrics();
+        this.outbound = new OutboundQueue(ServerConfig.OUTBOUND_CAPACITY, ServerConfig.OUTBOUND_MAX_BYTES,
+                ServerConfig.OUTBOUND_POLICY, metrics.overflows(ServerConfig.OUTBOUND_POLICY), loop, this::flush);
+        SSLContext tls = server.getTls();
+        this.transport = tls == null ? plain(channel)
+                : new TlsTransport(channel, Tls.serverEngine(tls), loop, server.getHandshakeExecutor(), metrics, this::onTransportReady);
+    }
+
+    private static Transport plain(SocketChannel channel) {
+        return new Transport() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return channel.read(dst);
+            }
+
+            @Override
+            public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+                return channel.write(srcs, offset, length);
+            }
+
+            @Override
+            public boolean canWrite() {
+                return true;
+            }
+
+            @Override
+            public boolean flush() {
+                return true;
+            }
+
+            @Override
+            public int pendingInputSpace() {
+                return 0;
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+    }
+
+    void setHandler(ServerClient1handler handler) {
+        this.handler = handler;
+    }
+
+    // Returns the socket view of the channel (addresses, ports)
+    Socket socket() {
+        return channel.socket();
+    }
+
+    // Registers for reads on the owning loop's selector
+    void register(Selector selector) throws ClosedChannelException {
+        if (closed.get()) {
+            return;
+        }
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        // Frames broadcast before registration completed are still waiting
+        flush();
+    }
+
+    // Reads available bytes and dispatches every complete frame to the handler. Repeats while the
+    // transport holds input that did not fit into the read buffer
+    void onReadable() {
+        try {
+            do {
+                int read = transport.read(readBuffer);
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                metrics.bytesIn.add(read);
+
+                readBuffer.flip();
+                if (!handshakeDone) {
+                    String first = Frames.decode(readBuffer);
+                    if (first != null) {
+                        handshakeDone = true;
+                        handler.onHandshake(first);
+                    }
+                }
+                if (handshakeDone && !readsPaused && !dispatchFrames()) {
+                    close();
+                    return;
+                }
+                prepareForRead();
+            } while (transport.pendingInputSpace() > 0 && !readsPaused);
+            // Reading may have produced output of its own (TLS handshake messages)
+            if (!transport.flush()) {
+                key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            logger.warning("Client error: " + e.getMessage());
+            close();
+        }
+    }
+
+    // Hands every complete frame to the handler in the negotiated protocol; false once the client exits.
+    // Stops early, leaving the rest buffered, when the DELAY flood policy holds a frame back
+    private boolean dispatchFrames() throws IOException {
+        boolean delay = ServerConfig.FLOOD_POLICY == FloodPolicy.DELAY;
+        int start = readBuffer.position();
+        if (handler.isV2()) {
+            ChatMessage frame;
+            while ((frame = WireProtocol.decode(readBuffer, handler.usesDeflate())) != null) {
+                if (delay && !ServerClient1handler.isControl(frame) && holdBack(start)) {
+                    return true;
+                }
+                if (!handler.onFrame(frame)) {
+                    return false;
+                }
+                start = readBuffer.position();
+            }
+        } else {
+            String message;
+            while ((message = Frames.decode(readBuffer)) != null) {
+                if (delay && !message.equalsIgnoreCase("exit") && holdBack(start)) {
+                    return true;
+                }
+                if (!handler.onMessage(message)) {
+                    return false;
+                }
+                start = readBuffer.position();
+            }
+        }
+        return true;
+    }
+
+    // If the client is over its flood limit, puts the frame starting at frameStart back and stops
+    // reading until it may be processed, so the client's further sends back up in TCP
+    private boolean holdBack(int frameStart) {
+        long wait = handler.floodDelay();
+        if (wait == 0) {
+            return false;
+        }
+        metrics.throttled.increment();
+        readBuffer.position(frameStart);
+        pauseReads();
+        server.schedule(() -> loop.execute(this::resumeReads), Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+        return true;
+    }
+
+    // Runs work on the executor with reads paused, then hands its result to then on the loop and
+    // dispatches what the client sent meanwhile. For handshake work too slow for the loop (a long
+    // journal replay); then is skipped if the connection closed in between
+    <T> void runOffLoop(Executor executor, Supplier<T> work, Consumer<T> then) {
+        pauseReads();
+        try {
+            executor.execute(() -> {
+                T result;
+                try {
+                    result = work.get();
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Closing connection after an unexpected error", e);
+                    close();
+                    return;
+                }
+                loop.execute(() -> {
+                    if (closed.get()) {
+                        return;
+                    }
+                    try {
+                        then.accept(result);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "Closing connection after an unexpected error", e);
+                        close();
+                        return;
+                    }
+                    resumeReads();
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            // The server is stopping
+            close();
+        }
+    }
+
+    private void pauseReads() {
+        readsPaused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    // Processes the frames held back by holdBack, then reads again unless it held one back again
+    private void resumeReads() {
+        if (closed.get() || key == null || !key.isValid()) {
+            return;
+        }
+        readsPaused = false;
+        try {
+            readBuffer.flip();
+            if (!dispatchFrames()) {
+                close();
+                return;
+            }
+            prepareForRead();
+        } catch (IOException e) {
+            logger.warning("Client error: " + e.getMessage());
+            close();
+            return;
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Closing connection after an unexpected error", e);
+            close();
+            return;
+        }
+        if (!readsPaused) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            if (transport.pendingInputSpace() > 0) {
+                onReadable();
+            }
+        }
+    }
+
+    // The transport finished work it did off the loop (TLS handshake tasks): reads what it can
+    // now decrypt and writes what waited for the handshake
+    private void onTransportReady() {
+        if (closed.get() || key == null || !key.isValid()) {
+            return;
+        }
+        if (!readsPaused) {
+            onReadable();
+        }
+        flush();
+    }
+
+    private int readInterest() {
+        return readsPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    // Compacts the read buffer, growing it for a large pending frame (or input the transport holds)
+    // and shrinking it when idle
+    private void prepareForRead() throws IOException {
+        int needed = handshakeDone && handler.isV2() ? WireProtocol.frameLength(readBuffer) : Frames.frameLength(readBuffer);
+        if (needed > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(needed);
+            larger.put(readBuffer);
+            readBuffer = larger;
+        } else if (!readBuffer.hasRemaining() && readBuffer.capacity() > INITIAL_READ_BUFFER) {
+            readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        } else {
+            readBuffer.compact();
+        }
+        int space = transport.pendingInputSpace();
+        if (space > readBuffer.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.position() + space);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    // Outbound frames; the owning loop drains them without blocking the producer
+    OutboundQueue outbound() {
+        return outbound;
+    }
+
+    // Tops the gather array up from the queue; returns false when there is nothing to write.
+    // Queued frames may be shared with other connections, so each is written through a duplicate
+    private boolean fillBatch() {
+        ByteBuffer frame;
+        while (batchEnd < batch.length && (frame = outbound.poll()) != null) {
+            batch[batchEnd++] = frame.duplicate();
+        }
+        return batchEnd > batchStart;
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    // Writes queued frames with gathering writes until the socket buffer fills, then waits for OP_WRITE.
+    // Everything queued since the last flush goes out in one syscall (up to BATCH_MAX_FRAMES). Frames
+    // waiting for a TLS handshake stay queued without OP_WRITE; the transport resumes the flush
+    private void flush() {
+        if (key == null || !key.isValid()) {
+            outbound.finishDrain();
+            return;
+        }
+
+        try {
+            do {
+                if (!transport.flush()) {
+                    key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                while (fillBatch()) {
+                    metrics.bytesOut.add(transport.write(batch, batchStart, batchEnd - batchStart));
+                    while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                        batch[batchStart++] = null;
+                    }
+                    if (batchStart < batchEnd || !transport.flush()) {
+                        key.interestOps(readInterest() | (transport.canWrite() ? SelectionKey.OP_WRITE : 0));
+                        return;
+                    }
+                    batchStart = 0;
+                    batchEnd = 0;
+                }
+                key.interestOps(readInterest());
+            } while (outbound.finishDrain());
+
+            if (outbound.isClosing()) {
+                close();
+            }
+        } catch (IOException e) {
+            logger.warning("Write failed to " + handler.getClientName() + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    // Closes the channel on the loop thread and lets the handler clean up once
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        outbound.close();
+        loop.execute(() -> {
+            if (key != null) {
+                key.cancel();
+            }
+            transport.shutdown();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warning("Error closing channel: " + e.getMessage());
+            }
+            handler.cleanupClient();
+        });
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Non-blocking server: acceptor threads plus a fixed set of selector event loops. With
+// chat.accept.threads > 1 each acceptor binds its own SO_REUSEPORT socket so the kernel spreads
+// incoming connections over them; where that option is missing they share one socket. With
+// chat.handoff.file the sockets always use SO_REUSEPORT, so a new server can bind the same port
+public class NioServerEngine {
+
+    private static final Logger logger = Logger.getLogger(NioServerEngine.class.getName());
+
+    private final ChatServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+    private final List<Thread> acceptThreads = new ArrayList<>();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    // Creates an engine serving the given port with the given number of event loops
+    public NioServerEngine(ChatServer server, int port, int ioThreads) {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+    }
+
+    // Binds the port and starts the acceptor and event-loop threads
+    public void start() throws IOException {
+        int acceptors = Math.max(1, ServerConfig.ACCEPT_THREADS);
+        try {
+            ServerSocketChannel first = ServerSocketChannel.open();
+            serverChannels.add(first);
+            boolean reusePort = (acceptors > 1 || ServerConfig.HANDOFF_FILE != null)
+                    && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            bind(first, port, reusePort);
+            for (int i = 1; i < acceptors && reusePort; i++) {
+                ServerSocketChannel extra = ServerSocketChannel.open();
+                serverChannels.add(extra);
+                bind(extra, first.socket().getLocalPort(), true);
+            }
+        } catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+        running.set(true);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+            loops[i].start();
+        }
+
+        for (int i = 0; i < acceptors; i++) {
+            ServerSocketChannel channel = serverChannels.get(i % serverChannels.size());
+            Thread acceptThread = new Thread(() -> acceptLoop(channel), "nio-acceptor-" + i);
+            acceptThreads.add(acceptThread);
+            acceptThread.start();
+        }
+    }
+
+    private static void bind(ServerSocketChannel channel, int port, boolean reusePort) throws IOException {
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+    }
+
+    // Accepts connections and hands them to the event loops round-robin. Admission is decided
+    // while the channel is still blocking, so a refusal can be written without a selector
+    private void acceptLoop(ServerSocketChannel serverChannel) {
+        AdmissionControl admission = server.getAdmission();
+        while (running.get() && serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                String refused = admission.admit(((InetSocketAddress) channel.getRemoteAddress()).getAddress());
+                if (refused != null) {
+                    admission.reject(channel.socket(), refused);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                NioConnection connection = new NioConnection(channel, loop, server);
+                ServerClient1handler clientHandler = new ServerClient1handler(connection, server);
+                connection.setHandler(clientHandler);
+
+                server.logConnection(channel.socket());
+                server.addClient(clientHandler);
+                loop.register(connection);
+            } catch (IOException e) {
+                if (running.get() && serverChannel.isOpen()) {
+                    server.log("Error accepting client: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Closes the listening sockets and waits for the acceptors to exit; open connections carry on
+    public void stopAccepting() {
+        closeChannels();
+        joinAcceptors();
+    }
+
+    // Stops accepting, closes every connection and waits for the loops to exit
+    public void stop() {
+        if (!running.compareAndSet(true, false)) {
+            return;
+        }
+
+        closeChannels();
+
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+
+        joinAcceptors();
+        try {
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.thread.join(1000);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void joinAcceptors() {
+        try {
+            for (Thread acceptThread : acceptThreads) {
+                acceptThread.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeChannels() {
+        for (ServerSocketChannel channel : serverChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warning("Error closing server channel: " + e.getMessage());
+            }
+        }
+    }
+
+    // Port the engine is bound to
+    public int getLocalPort() {
+        return serverChannels.get(0).socket().getLocalPort();
+    }
+
+    // Sockets the acceptors listen on (more than one with SO_REUSEPORT)
+    public int getAcceptorSockets() {
+        return serverChannels.size();
+    }
+
+    // Returns true while the engine accepts connections
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    // A single selector thread owning a subset of the connections
+    static final class EventLoop implements Runnable, Executor {
+
+        private static final int MAX_SPARE_BUFFERS = 16;
+
+        private final Selector selector;
+        // TLS ciphertext buffers, lent to this loop's connections only while they hold data
+        private final ArrayDeque<ByteBuffer> spareBuffers = new ArrayDeque<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean active = true;
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        // Runs a task on the loop thread, waking the selector if called from elsewhere
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        // An empty buffer of at least size bytes (loop thread only)
+        ByteBuffer borrowBuffer(int size) {
+            ByteBuffer buffer = spareBuffers.poll();
+            return buffer != null && buffer.capacity() >= size ? buffer : ByteBuffer.allocate(size);
+        }
+
+        // Takes a borrowed buffer back for reuse (loop thread only)
+        void returnBuffer(ByteBuffer buffer) {
+            if (spareBuffers.size() < MAX_SPARE_BUFFERS) {
+                buffer.clear();
+                spareBuffers.push(buffer);
+            }
+        }
+
+        // Registers a new connection with this loop's selector
+        void register(NioConnection connection) {
+            execute(() -> {
+                try {
+                    connection.register(selector);
+                } catch (ClosedChannelException e) {
+                    connection.close();
+                }
+            });
+        }
+
+        // Asks the loop to close its connections and exit
+        void shutdown() {
+            active = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (active) {
+                try {
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    runTasks();
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (RuntimeException e) {
+                            // A bug handling one connection must not strand the others on this loop
+                            logger.log(Level.SEVERE, "Closing connection after an unexpected error", e);
+                            connection.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                } catch (IOException e) {
+                    logger.warning("Event loop error: " + e.getMessage());
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            runTasks();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.warning("Error closing selector: " + e.getMessage());
+            }
+        }
+
+        // Runs every task queued for this loop; a failing task is logged and the others still run
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Event loop task failed", e);
+                }
+            }
+        }
+    }
+}
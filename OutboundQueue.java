@@ -0,0 +1,165 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded per-client queue of encoded frames; at most one drain task writes it at a time
+final class OutboundQueue {
+
+    private static final int OPEN = 0;
+    private static final int CLOSING = 1;
+    private static final int CLOSED = 2;
+
+    private final Queue<ByteBuffer> frames = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicInteger state = new AtomicInteger(OPEN);
+    private final int maxFrames;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private final LongAdder overflows;
+    private final Executor executor;
+    private final Runnable drainTask;
+
+    // The drain task runs on the executor whenever frames arrive at an idle queue; overflows counts
+    // every application of the policy (a dropped frame or a disconnect)
+    OutboundQueue(int maxFrames, long maxBytes, OverflowPolicy policy, LongAdder overflows, Executor executor,
+            Runnable drainTask) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.overflows = overflows;
+        this.executor = executor;
+        this.drainTask = drainTask;
+    }
+
+    // Enqueues a frame without blocking, applying the overflow policy when a limit is hit.
+    // Returns false if the queue is closed or the DISCONNECT policy fired
+    boolean offer(ByteBuffer frame) {
+        if (state.get() != OPEN) {
+            return false;
+        }
+
+        int bytes = frame.remaining();
+        if (!reserve(bytes)) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    overflows.increment();
+                    return true;
+                case DROP_OLDEST:
+                    do {
+                        if (poll() == null) {
+                            // A single frame larger than the byte limit can never fit
+                            overflows.increment();
+                            return true;
+                        }
+                        overflows.increment();
+                    } while (!reserve(bytes));
+                    break;
+                default:
+                    overflows.increment();
+                    return false;
+            }
+        }
+
+        frames.add(frame);
+        schedule();
+        return true;
+    }
+
+    // Claims room for one frame of the given size, or returns false if either limit would be exceeded
+    private boolean reserve(int bytes) {
+        if (size.incrementAndGet() > maxFrames) {
+            size.decrementAndGet();
+            return false;
+        }
+        if (queuedBytes.addAndGet(bytes) > maxBytes) {
+            queuedBytes.addAndGet(-bytes);
+            size.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(drainTask);
+        }
+    }
+
+    ByteBuffer peek() {
+        return frames.peek();
+    }
+
+    ByteBuffer poll() {
+        ByteBuffer frame = frames.poll();
+        if (frame != null) {
+            size.decrementAndGet();
+            queuedBytes.addAndGet(-frame.remaining());
+        }
+        return frame;
+    }
+
+    // Called by the drain once the queue looks empty; returns true if frames raced in and it should keep going
+    boolean finishDrain() {
+        scheduled.set(false);
+        return !frames.isEmpty() && scheduled.compareAndSet(false, true);
+    }
+
+    // Replaces whatever is queued with a final frame; the drain closes the connection once it is written.
+    // Returns false if the queue was already closing or closed
+    boolean closeWith(ByteBuffer finalFrame) {
+        if (!state.compareAndSet(OPEN, CLOSING)) {
+            return false;
+        }
+        while (poll() != null) {
+            // discard backlog the client was not reading anyway
+        }
+        frames.add(finalFrame);
+        schedule();
+        return true;
+    }
+
+    // Like closeWith(), but the backlog is written before the final frame. Returns false if the
+    // queue was already closing or closed
+    boolean finishWith(ByteBuffer finalFrame) {
+        if (!state.compareAndSet(OPEN, CLOSING)) {
+            return false;
+        }
+        frames.add(finalFrame);
+        schedule();
+        return true;
+    }
+
+    // Rejects further frames and drops anything still queued
+    void close() {
+        state.set(CLOSED);
+        frames.clear();
+        size.set(0);
+        queuedBytes.set(0);
+    }
+
+    // True once the queue stopped accepting frames (closing or closed)
+    boolean isClosed() {
+        return state.get() != OPEN;
+    }
+
+    // True once closeWith() or finishWith() queued the final frame; a drain that empties the
+    // queue in this state has written it
+    boolean isClosing() {
+        return state.get() == CLOSING;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    long queuedBytes() {
+        return queuedBytes.get();
+    }
+}
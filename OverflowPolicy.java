@@ -0,0 +1,14 @@
+// What a client's outbound queue does when it hits its message or byte limit
+public enum OverflowPolicy {
+    // Discard queued frames from the head until the new one fits
+    DROP_OLDEST,
+    // Discard the frame being offered
+    DROP_NEWEST,
+    // Send a reason frame and disconnect the client
+    DISCONNECT;
+
+    // Parses names like "drop-oldest" or "DROP_OLDEST"
+    public static OverflowPolicy fromName(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// Named chat rooms. Every client is in exactly one room at a time, starting in the lobby; chat is
+// delivered only to the members of the sender's room, so a message costs work proportional to
+// the room's size rather than to the number of connections. Lookups are lock-free
+// (ConcurrentHashMap) and so is iterating a room's members (SubscriberSet); rooms other than the
+// lobby are created on first join and removed when the last member leaves
+final class RoomRegistry {
+
+    static final String LOBBY = "lobby";
+
+    private static final Pattern VALID_NAME = Pattern.compile("[a-z0-9_-]{1,32}");
+
+    // One room and its members
+    static final class Room {
+        final String name;
+        final SubscriberSet<ServerClient1handler> members = new SubscriberSet<>();
+        // Set (under the room's monitor) once the room is removed; a joiner that finds it closed retries
+        private boolean closed;
+
+        Room(String name) {
+            this.name = name;
+        }
+
+        int size() {
+            return members.size();
+        }
+    }
+
+    // Told about every join and leave (the cluster uses it to publish membership)
+    interface Listener {
+        void joined(ServerClient1handler client, Room room);
+
+        void left(ServerClient1handler client, Room room);
+    }
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Room lobby = new Room(LOBBY);
+    private volatile Listener listener;
+
+    RoomRegistry() {
+        rooms.put(LOBBY, lobby);
+    }
+
+    // Normalizes a room name typed by a client, or returns null if it is not a valid name
+    static String normalize(String name) {
+        String normalized = name.trim().toLowerCase(Locale.ROOT);
+        if (normalized.startsWith("#")) {
+            normalized = normalized.substring(1);
+        }
+        return VALID_NAME.matcher(normalized).matches() ? normalized : null;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    Room lobby() {
+        return lobby;
+    }
+
+    // The room with the given (normalized) name, or null if nobody is in it
+    Room get(String name) {
+        return rooms.get(name);
+    }
+
+    // Adds a client to the named room, creating it if needed; returns the room joined
+    Room join(ServerClient1handler client, String name) {
+        while (true) {
+            Room room = rooms.computeIfAbsent(name, Room::new);
+            synchronized (room) {
+                if (!room.closed) {
+                    room.members.add(client);
+                    Listener listener = this.listener;
+                    if (listener != null) {
+                        listener.joined(client, room);
+                    }
+                    return room;
+                }
+            }
+        }
+    }
+
+    // Removes a client from a room, dropping the room if it became empty (the lobby always stays)
+    void leave(ServerClient1handler client, Room room) {
+        synchronized (room) {
+            room.members.remove(client);
+            if (room != lobby && room.members.isEmpty()) {
+                room.closed = true;
+                rooms.remove(room.name, room);
+            }
+        }
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.left(client, room);
+        }
+    }
+
+    // Empties every room (server stop); clients that are still connected must rejoin
+    void clear() {
+        for (Room room : rooms.values()) {
+            synchronized (room) {
+                room.members.clear();
+                if (room != lobby) {
+                    room.closed = true;
+                    rooms.remove(room.name, room);
+                }
+            }
+        }
+    }
+
+    // Number of rooms with at least one member, plus the lobby
+    int size() {
+        return rooms.size();
+    }
+
+    // "name (members)" for up to limit rooms, largest first, followed by how many were left out;
+    // remote holds the members other cluster nodes have in each room
+    String describe(int limit, Map<String, Integer> remote) {
+        Map<String, Integer> sizes = new HashMap<>(remote);
+        for (Room room : rooms.values()) {
+            sizes.merge(room.name, room.size(), Integer::sum);
+        }
+        List<String> all = new ArrayList<>(sizes.keySet());
+        // Sizes change while we sort, so sort a snapshot of them
+        long[] bySize = new long[all.size()];
+        for (int i = 0; i < bySize.length; i++) {
+            bySize[i] = (long) sizes.get(all.get(i)) << 32 | i;
+        }
+        Arrays.sort(bySize);
+
+        StringBuilder text = new StringBuilder();
+        int shown = Math.min(limit, bySize.length);
+        for (int i = 0; i < shown; i++) {
+            long entry = bySize[bySize.length - 1 - i];
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append('#').append(all.get((int) entry)).append(" (").append(entry >>> 32).append(')');
+        }
+        if (bySize.length > shown) {
+            text.append(" and ").append(bySize.length - shown).append(" more");
+        }
+        return text.toString();
+    }
+}
@@ -1,17 +1,14 @@
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.*;
 import javax.swing.*;
 
+// Server window. The chat server itself is the headless ChatServer; this frame only starts and
+// stops it, sends server messages and shows a bounded view of the log
 public class Server1 extends javax.swing.JFrame {
-    private ServerSocket serverSocket;
-    private final List<ServerClient1handler> clients = Collections.synchronizedList(new ArrayList<>());
-    private static final Logger logger = Logger.getLogger(Server1.class.getName());
-    private final AtomicBoolean isRunning = new AtomicBoolean(false);
-    private Thread serverThread;
+    private final ChatServer server = new ChatServer();
+    private final LogAreaView logView;
+    private final Timer refreshTimer;
+    private long lastRefresh;
 
     private javax.swing.JButton jButton1;
     private javax.swing.JLabel jLabel1;
@@ -25,6 +22,10 @@ public class Server1 extends javax.swing.JFrame {
     // Constructor
     public Server1() {
         initComponents();
+        logView = new LogAreaView(msg_area, ServerConfig.UI_MAX_LINES);
+        server.getLog().addListener(logView);
+        refreshTimer = new Timer(ServerConfig.UI_REFRESH_MS, e -> refresh());
+        refreshTimer.start();
         setupServer();
     }
 
@@ -38,145 +39,46 @@ public class Server1 extends javax.swing.JFrame {
 
     // Starts the server and accepts client connections
     private void startServer() {
-        if (isRunning.get()) {
-            appendToLog("Server is already running");
-            return;
+        try {
+            server.start();
+        } catch (IOException e) {
+            server.log("Server error: " + e.getMessage());
         }
-
-        serverThread = new Thread(() -> {
-            try {
-                serverSocket = new ServerSocket(7777);
-                isRunning.set(true);
-                SwingUtilities.invokeLater(() -> {
-                    appendToLog("Server started on port 7777");
-                    start_button.setEnabled(false);
-                    stop_button.setEnabled(true);
-                });
-
-                while (!serverSocket.isClosed() && isRunning.get()) {
-                    try {
-                        Socket clientSocket = serverSocket.accept();
-
-                        SwingUtilities.invokeLater(() -> {
-                            String clientIP = clientSocket.getInetAddress().getHostAddress();
-                            String connectedToIP = clientSocket.getLocalAddress().getHostAddress();
-                            int clientPort = clientSocket.getPort();
-                            int serverPort = clientSocket.getLocalPort();
-
-                            String connectionInfo = String.format(
-                                "Client connected from: %s (Port: %d) → Server: %s (Port: %d)",
-                                clientIP, clientPort, connectedToIP, serverPort
-                            );
-                            appendToLog(connectionInfo);
-                        });
-
-                        ServerClient1handler clientHandler = new ServerClient1handler(clientSocket, this);
-                        clients.add(clientHandler);
-                        new Thread(clientHandler).start();
-                    } catch (IOException e) {
-                        if (!serverSocket.isClosed() && isRunning.get()) {
-                            SwingUtilities.invokeLater(() -> 
-                                appendToLog("Error accepting client: " + e.getMessage()));
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                SwingUtilities.invokeLater(() -> 
-                    appendToLog("Server error: " + e.getMessage()));
-            } finally {
-                isRunning.set(false);
-                SwingUtilities.invokeLater(() -> {
-                    start_button.setEnabled(true);
-                    stop_button.setEnabled(false);
-                });
-            }
-        });
-
-        serverThread.start();
+        refresh();
     }
 
-    // Stops the server and disconnects all clients
+    // Drains the server: clients are told to reconnect in a few seconds and disconnected once
+    // their queued messages are out (see ChatServer.drain)
     private void stopServer() {
-        if (!isRunning.get()) {
-            appendToLog("Server is not running");
-            return;
-        }
-
-        isRunning.set(false);
-
-        new Thread(() -> {
-            try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
-                }
-
-                synchronized (clients) {
-                    for (ServerClient1handler client : new ArrayList<>(clients)) {
-                        try {
-                            client.getClientSocket().close();
-                        } catch (IOException e) {
-                            logger.warning("Error closing client socket: " + e.getMessage());
-                        }
-                    }
-                    clients.clear();
-                }
-
-                if (serverThread != null) {
-                    try {
-                        serverThread.join(1000);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-
-                SwingUtilities.invokeLater(() -> {
-                    appendToLog("Server stopped successfully");
-                    start_button.setEnabled(true);
-                    stop_button.setEnabled(false);
-                });
-            } catch (IOException e) {
-                SwingUtilities.invokeLater(() -> 
-                    appendToLog("Error stopping server: " + e.getMessage()));
-            }
-        }).start();
+        stop_button.setEnabled(false);
+        new Thread(server::drain, "server-drain").start();
     }
 
-    // Broadcasts message to all clients except sender
-    public void broadcast(String message, ServerClient1handler excludeClient) {
-        synchronized (clients) {
-            for (ServerClient1handler client : new ArrayList<>(clients)) {
-                if (client != excludeClient) {
-                    try {
-                        client.sendMessage(message);
-                    } catch (IOException e) {
-                        logger.warning("Broadcast failed to " + client.getClientName());
-                        clients.remove(client);
-                    }
-                }
-            }
+    // Timer tick on the EDT: applies new log lines and syncs the buttons with the server state.
+    // How late the tick runs is the EDT's queueing lag, recorded in the server metrics
+    private void refresh() {
+        long now = System.nanoTime();
+        if (lastRefresh != 0) {
+            server.getMetrics().recordEdtLag(Math.max(0, now - lastRefresh - ServerConfig.UI_REFRESH_MS * 1_000_000L));
         }
+        lastRefresh = now;
+        logView.refresh();
+        boolean running = server.isRunning();
+        start_button.setEnabled(!running);
+        stop_button.setEnabled(running && !server.isDraining());
     }
 
-    // Removes disconnected client from client list
-    public void removeClient(ServerClient1handler client) {
-        clients.remove(client);
-        appendToLog(client.getClientName() + " was removed from active clients");
-    }
-
-    // Appends message to server log (GUI)
+    // Appends message to server log
     public void appendToLog(String message) {
-        SwingUtilities.invokeLater(() -> {
-            msg_area.append(message + "\n");
-            msg_area.setCaretPosition(msg_area.getDocument().getLength());
-        });
+        server.log(message);
     }
 
     // Sends a message from the server to all clients
     private void sendButtonActionPerformed() {
         String msg = msg_text.getText().trim();
         if (!msg.isEmpty()) {
-            broadcast("Server: " + msg, null);
-            appendToLog("Server: " + msg);
+            server.broadcast(ChatMessage.system(msg), null);
+            server.log("Server: " + msg);
             msg_text.setText("");
         } 
     }
@@ -1,48 +1,84 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
+import javax.net.ssl.SSLSocket;
 
 public class ServerClient1handler implements Runnable {
 
     private final Socket clientSocket;
-    private final Server1 server;
+    private final NioConnection connection;
+    private final ChatServer server;
+    private final OutboundQueue outbound;
     private DataInputStream dis;
-    private DataOutputStream dout;
+    private byte[] writeScratch;
+    private OutputStream out;
+    private boolean busyWriter;
     private String clientName;
+    // 0 until the handshake, then LEGACY or WireProtocol.VERSION
+    private volatile int protocol;
+    // Set in the handshake when the client negotiated per-message compression
+    private volatile boolean deflate;
+    // Room this client chats in; null until the handshake
+    private volatile RoomRegistry.Room room;
+    // Last journaled seq already queued as history; broadcasts up to it are skipped
+    private volatile long replayedThrough;
+    // Resumable session of a v2 client (null for legacy clients or when sessions are off)
+    private SessionRegistry.Session session;
+    // Highest seq the client acknowledged
+    private volatile long acked;
+    // Set when the client said exit rather than dropping the connection
+    private volatile boolean exited;
+    // Per-client flood limit (null with -Dchat.flood.rate=0), only used by the reading thread
+    private final TokenBucket floodBucket = ServerConfig.FLOOD_RATE > 0
+            ? new TokenBucket(ServerConfig.FLOOD_RATE, ServerConfig.FLOOD_BURST, System.nanoTime()) : null;
+    // When the client was last told its messages are dropped
+    private long lastFloodNotice = System.nanoTime() - FLOOD_NOTICE_NANOS;
+    private static final long FLOOD_NOTICE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final int LEGACY = 1;
+    // Rooms named in a /rooms answer
+    private static final int MAX_LISTED_ROOMS = 20;
     private static final Logger logger = Logger.getLogger(ServerClient1handler.class.getName());
 
     // Constructor to initialize the handler with socket and server reference
-    public ServerClient1handler(Socket socket, Server1 server) {
+    public ServerClient1handler(Socket socket, ChatServer server) {
         this.clientSocket = socket;
+        this.connection = null;
         this.server = server;
+        this.outbound = new OutboundQueue(ServerConfig.OUTBOUND_CAPACITY, ServerConfig.OUTBOUND_MAX_BYTES,
+                ServerConfig.OUTBOUND_POLICY, server.getMetrics().overflows(ServerConfig.OUTBOUND_POLICY),
+                server.getWriterExecutor(), this::drainOutbound);
     }
 
-    // Handles communication with the connected client
+    // Constructor for a client served by the NIO engine
+    ServerClient1handler(NioConnection connection, ChatServer server) {
+        this.clientSocket = connection.socket();
+        this.connection = connection;
+        this.server = server;
+        this.outbound = connection.outbound();
+    }
+
+    // Handles communication with the connected client (blocking mode)
     @Override
     public void run() {
         try {
-            dis = new DataInputStream(clientSocket.getInputStream());
-            dout = new DataOutputStream(clientSocket.getOutputStream());
-
-            clientName = dis.readUTF();
-            server.appendToLog(clientName + " joined the chat.");
-            server.broadcast("Server: " + clientName + " has joined the chat", this);
-
-            String message;
-            while (!(message = dis.readUTF()).equalsIgnoreCase("exit")) {
-                if (containsSymbols(message)) {
-                    sendMessage("Server: Special characters are not allowed.");
-                    server.appendToLog("Blocked message from " + clientName + ": " + message);
-                    continue;
-                }
-
-                server.appendToLog(clientName + ": " + message);
-                server.broadcast(clientName + ": " + message, this);
+            if (clientSocket instanceof SSLSocket) {
+                handshakeTls((SSLSocket) clientSocket);
+            }
+            dis = new DataInputStream(new BufferedInputStream(server.getMetrics().countingInput(clientSocket.getInputStream())));
 
-                String response = generateAutoResponse(message);
-                if (response != null) {
-                    sendMessage("Server: " + response);
-                    server.appendToLog("Server: " + response);
+            onHandshake(dis.readUTF());
+            if (isV2()) {
+                while (onFrame(WireProtocol.read(dis, deflate))) {
+                    // keep reading until the client exits
+                }
+            } else {
+                while (onMessage(dis.readUTF())) {
+                    // keep reading until the client exits
                 }
             }
 
@@ -53,35 +89,486 @@ public class ServerClient1handler implements Runnable {
         }
     }
 
-    // Checks if the message contains disallowed characters
-    private boolean containsSymbols(String message) {
-        return !message.matches("[a-zA-Z0-9\\s]+");
+    // Runs the TLS handshake on this client's thread and records how long it took
+    private void handshakeTls(SSLSocket socket) throws IOException {
+        long startedMillis = System.currentTimeMillis();
+        long started = System.nanoTime();
+        try {
+            socket.startHandshake();
+        } catch (IOException e) {
+            server.getMetrics().tlsFailures.increment();
+            throw e;
+        }
+        server.getMetrics().recordTlsHandshake(System.nanoTime() - started, Tls.isResumed(socket.getSession(), startedMillis));
+    }
+
+    // Handles the first (writeUTF) frame: the client's name, or the v2 hello followed by the name.
+    // A v2 hello may carry resume=<token> to take over a held session (see SessionRegistry) and
+    // since=<seq>; the journaled history of the client's room after that seq is then queued before
+    // the client becomes visible to broadcasts, so it sees no gap and no duplicates
+    void onHandshake(String first) throws IOException {
+        int negotiated;
+        long since = -1;
+        String roomName = RoomRegistry.LOBBY;
+        boolean resumed = false;
+        if (WireProtocol.isHello(first)) {
+            clientName = WireProtocol.helloName(first);
+            deflate = ServerConfig.COMPRESSION && WireProtocol.hasOption(first, Compression.OPTION);
+            since = parseSeq(WireProtocol.optionValue(first, "since"));
+            String token = WireProtocol.optionValue(first, "resume");
+            SessionRegistry sessions = server.getSessions();
+            session = token == null ? null : sessions.resume(token, this);
+            if (session != null) {
+                resumed = true;
+                clientName = session.name;
+                roomName = session.room();
+                // A client that got no broadcast yet asks since=0; it is owed nothing from before it joined
+                since = Math.max(since, session.acked());
+            } else {
+                session = sessions.create(clientName, this, server.lastSeq());
+            }
+
+            // HELLO is queued before the protocol is published, so it precedes every broadcast
+            String accepted = WireProtocol.VERSION + (deflate ? ";" + Compression.OPTION : "")
+                    + (session != null ? ";session=" + session.token : "") + (resumed ? ";resumed" : "");
+            sendFrame(WireProtocol.encode(new ChatMessage(WireProtocol.HELLO, 0, null, accepted), 0));
+            negotiated = WireProtocol.VERSION;
+            server.log(clientName + (resumed ? " resumed the session" : " joined the chat")
+                    + " (protocol v2" + (deflate ? ", deflate" : "") + ").");
+        } else {
+            clientName = first;
+            negotiated = LEGACY;
+            server.log(clientName + " joined the chat.");
+        }
+
+        MessageJournal journal = server.getJournal();
+        if (journal == null || since < 0) {
+            enter(negotiated, roomName);
+            announce(resumed);
+        } else if (connection == null) {
+            finishReplay(journal, journal.collect(since, roomName), negotiated, roomName);
+            announce(resumed);
+        } else {
+            // An event loop must not read a long history itself; the client waits with its reads paused
+            long replaySince = since;
+            String replayedRoom = roomName;
+            boolean announced = resumed;
+            connection.runOffLoop(server.getReplayExecutor(), () -> journal.collect(replaySince, replayedRoom), collected -> {
+                try {
+                    finishReplay(journal, collected, negotiated, replayedRoom);
+                    announce(announced);
+                } catch (IOException e) {
+                    logger.warning("Replay to " + clientName + " failed: " + e.getMessage());
+                    connection.close();
+                }
+            });
+        }
+    }
+
+    // Queues the collected history and enters the room; entering inside the replay keeps new
+    // broadcasts from being numbered until the client is a recipient
+    private void finishReplay(MessageJournal journal, MessageJournal.Replay collected, int negotiated, String roomName)
+            throws IOException {
+        journal.replay(collected, frame -> {
+            sendFrame(frame);
+            server.getMetrics().messagesOut.increment();
+        }, through -> {
+            replayedThrough = through;
+            enter(negotiated, roomName);
+        });
     }
 
-    // Generates automated responses for certain keywords
-    private String generateAutoResponse(String msg) {
-        msg = msg.toLowerCase();
-        if (msg.contains("hi") || msg.contains("hello")) return "Hello " + clientName + "!";
-        if (msg.contains("how are you")) return "I'm a server, always running!";
-        if (msg.contains("thanks") || msg.contains("thank you")) return "You're welcome.";
-        return null;
+    // Tells the room about a client that joined, unless it resumed a session nobody saw end
+    private void announce(boolean resumed) {
+        if (!resumed) {
+            server.broadcast(room, ChatMessage.joined(clientName), this);
+        }
     }
 
-    // Sends a message to the connected client
-    public void sendMessage(String message) throws IOException {
-        dout.writeUTF(message);
-        dout.flush();
+    // Publishes the protocol and joins the room, making the client a broadcast recipient
+    private void enter(int negotiated, String roomName) {
+        protocol = negotiated;
+        room = server.getRooms().join(this, roomName);
     }
 
-    // Cleans up resources when client disconnects
-    private void cleanupClient() {
+    private static long parseSeq(String value) {
+        if (value == null) {
+            return -1;
+        }
         try {
-            if (clientName != null) {
-                server.broadcast("Server: " + clientName + " has left the chat", this);
-                server.appendToLog(clientName + " disconnected.");
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Processes one legacy text message; returns false when the client asked to exit
+    boolean onMessage(String message) throws IOException {
+        server.getMetrics().messagesIn.increment();
+        if (message.equalsIgnoreCase("exit")) {
+            exited = true;
+            return false;
+        }
+        return !admitInbound() || onChat(message);
+    }
+
+    // Processes one v2 frame; returns false when the client asked to exit
+    boolean onFrame(ChatMessage frame) throws IOException {
+        server.getMetrics().messagesIn.increment();
+        if (!isControl(frame) && !admitInbound()) {
+            return true;
+        }
+        switch (frame.type) {
+            case WireProtocol.EXIT:
+                exited = true;
+                return false;
+            case WireProtocol.ACK:
+                acked = Math.max(acked, parseSeq(frame.text));
+                return true;
+            case WireProtocol.CHAT:
+                return onChat(frame.text);
+            case WireProtocol.ROOM_JOIN:
+                joinRoom(frame.text);
+                return true;
+            case WireProtocol.ROOM_LEAVE:
+                joinRoom(RoomRegistry.LOBBY);
+                return true;
+            case WireProtocol.ROOM_LIST:
+                listRooms();
+                return true;
+            default:
+                logger.fine("Ignoring frame type " + frame.type + " from " + clientName);
+                return true;
+        }
+    }
+
+    // Exit and acknowledgements are never flood limited
+    static boolean isControl(ChatMessage frame) {
+        return frame.type == WireProtocol.EXIT || frame.type == WireProtocol.ACK;
+    }
+
+    // Takes one message's token from this client's bucket and the server-wide one. Returns 0 if the
+    // message may be processed now, otherwise the nanoseconds until it may (and takes no token).
+    // Runs for every inbound message, so it only touches the buckets' primitive state
+    long floodDelay() {
+        TokenBucket global = server.getFloodLimit();
+        if (floodBucket == null && global == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        if (floodBucket != null) {
+            long wait = floodBucket.nanosUntilAvailable(now);
+            if (wait > 0) {
+                return wait;
             }
-            server.removeClient(this);
+        }
+        if (global != null && !global.tryAcquire(now)) {
+            return Math.max(1, global.nanosUntilAvailable(now));
+        }
+        if (floodBucket != null) {
+            floodBucket.tryAcquire(now);
+        }
+        return 0;
+    }
+
+    // Applies the flood policy to one inbound message; returns false if it must be discarded.
+    // In NIO mode DELAY is applied by the connection before dispatching, as it cannot block its loop
+    private boolean admitInbound() throws IOException {
+        if (connection != null && ServerConfig.FLOOD_POLICY == FloodPolicy.DELAY) {
+            return true;
+        }
+        if (outbound.isClosed()) {
+            // Being disconnected; nothing more it sends matters
+            return false;
+        }
+        long wait = floodDelay();
+        if (wait == 0) {
+            return true;
+        }
+        server.getMetrics().throttled.increment();
+        switch (ServerConfig.FLOOD_POLICY) {
+            case DELAY:
+                // Not reading meanwhile makes the client's sends back up in TCP
+                do {
+                    LockSupport.parkNanos(wait);
+                } while ((wait = floodDelay()) > 0);
+                return true;
+            case DROP:
+                long now = System.nanoTime();
+                if (now - lastFloodNotice >= FLOOD_NOTICE_NANOS) {
+                    lastFloodNotice = now;
+                    sendMessage(ChatMessage.system("You are sending too fast; messages are being dropped"));
+                }
+                return false;
+            default:
+                // Like an exit: the session ends and the leave is announced
+                exited = true;
+                disconnectWith(ChatMessage.system("Disconnected for sending messages too fast"),
+                        clientName + " disconnected: flooding");
+                return false;
+        }
+    }
+
+    // Runs a chat line through the filters, broadcasts it to the room and sends any auto-response
+    private boolean onChat(String message) throws IOException {
+        if (message.startsWith("/")) {
+            onCommand(message);
+            return true;
+        }
+        for (MessageFilter filter : server.getFilters()) {
+            String reason = filter.check(message);
+            if (reason != null) {
+                server.getMetrics().blocked.increment();
+                sendMessage(ChatMessage.system(reason));
+                server.log("Blocked message from " + clientName + ": " + message);
+                return true;
+            }
+        }
+
+        RoomRegistry.Room current = room;
+        server.log(current == server.getRooms().lobby() ? clientName + ": " + message
+                : "#" + current.name + " " + clientName + ": " + message);
+        server.broadcast(current, ChatMessage.chat(clientName, message), this);
+
+        String response = server.getAutoResponder().respond(message, clientName);
+        if (response != null) {
+            sendMessage(ChatMessage.system(response));
+            server.log("Server: " + response);
+        }
+        return true;
+    }
+
+    // Handles the room commands typed as chat text: /join <room>, /leave and /rooms
+    private void onCommand(String command) throws IOException {
+        String[] parts = command.trim().split("\\s+", 2);
+        switch (parts[0].toLowerCase()) {
+            case "/join":
+                if (parts.length < 2) {
+                    sendMessage(ChatMessage.system("Usage: /join <room>"));
+                } else {
+                    joinRoom(parts[1]);
+                }
+                break;
+            case "/leave":
+                joinRoom(RoomRegistry.LOBBY);
+                break;
+            case "/rooms":
+                listRooms();
+                break;
+            default:
+                sendMessage(ChatMessage.system("Unknown command " + parts[0] + ". Commands: /join <room>, /leave, /rooms"));
+        }
+    }
+
+    // Moves the client to another room, telling both rooms. The client joins the new room before
+    // leaving the old one, so it may see one message twice but never misses one while moving
+    private void joinRoom(String requested) throws IOException {
+        String name = RoomRegistry.normalize(requested);
+        if (name == null) {
+            sendMessage(ChatMessage.system("Room names are 1 to 32 letters, digits, '-' or '_'"));
+            return;
+        }
+        RoomRegistry.Room current = room;
+        if (current.name.equals(name)) {
+            sendMessage(ChatMessage.system("You are already in #" + name));
+            return;
+        }
+
+        RoomRegistry rooms = server.getRooms();
+        RoomRegistry.Room next = rooms.join(this, name);
+        room = next;
+        rooms.leave(this, current);
+        server.broadcast(current, ChatMessage.system(clientName + " left #" + current.name), this);
+        server.broadcast(next, ChatMessage.system(clientName + " joined #" + next.name), this);
+        int online = next.size() + remoteRoomSizes().getOrDefault(next.name, 0);
+        sendMessage(ChatMessage.system("You are now in #" + next.name + " (" + online + " online)"));
+        server.log(clientName + " moved from #" + current.name + " to #" + next.name);
+    }
+
+    // Sends the client the largest rooms
+    private void listRooms() throws IOException {
+        sendMessage(ChatMessage.system("Rooms: " + server.getRooms().describe(MAX_LISTED_ROOMS, remoteRoomSizes())));
+    }
+
+    private Map<String, Integer> remoteRoomSizes() {
+        ClusterNode cluster = server.getCluster();
+        return cluster != null ? cluster.remoteRoomSizes() : Map.of();
+    }
+
+    // Sends a message to the connected client in its protocol. It carries seq 0: only broadcasts
+    // are numbered (and journaled), so a notice never moves the client's resume position past a
+    // broadcast still on its way to the queue
+    public void sendMessage(ChatMessage message) throws IOException {
+        sendFrame(encode(message, 0));
+        server.getMetrics().messagesOut.increment();
+    }
+
+    // Encodes a message for this client's protocol
+    private ByteBuffer encode(ChatMessage message, long seq) throws IOException {
+        return isV2() ? WireProtocol.encode(message, seq, deflate, false) : Frames.encode(message.legacyText());
+    }
+
+    // Queues an encoded (possibly shared) frame without blocking; fails if the client is closed.
+    // A client over its outbound limits is handled by the configured overflow policy instead
+    void sendFrame(ByteBuffer frame) throws IOException {
+        if (!outbound.offer(frame)) {
+            if (outbound.isClosed()) {
+                throw new ClosedChannelException();
+            }
+            disconnectSlowConsumer();
+        }
+    }
+
+    private void disconnectSlowConsumer() throws IOException {
+        disconnectWith(ChatMessage.system("Disconnected because you are not reading messages fast enough"),
+                clientName + " disconnected: outbound limit exceeded");
+    }
+
+    // Replaces the client's backlog with a reason frame and closes it once written (or after a grace period)
+    private void disconnectWith(ChatMessage reason, String logLine) throws IOException {
+        if (!outbound.closeWith(encode(reason, 0))) {
+            return;
+        }
+        server.log(logLine);
+        server.schedule(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                logger.warning("Error closing disconnected client: " + e.getMessage());
+            }
+        }, ServerConfig.SLOW_CONSUMER_GRACE_MS);
+    }
+
+    // Tells the client the server is restarting and when to reconnect, and closes the connection
+    // once everything queued before that notice has been written (see ChatServer.drain).
+    // A client still in its handshake has nothing queued and is closed at once
+    void restart(long reconnectMillis) throws IOException {
+        if (protocol == 0) {
+            close();
+            return;
+        }
+        ChatMessage notice = isV2() ? new ChatMessage(WireProtocol.RESTART, 0, null, Long.toString(reconnectMillis))
+                : ChatMessage.system(String.format("Server restarting, reconnect in %.1f s", reconnectMillis / 1000.0));
+        outbound.finishWith(encode(notice, 0));
+    }
+
+    // True until the connection is closed
+    boolean isOpen() {
+        return !clientSocket.isClosed();
+    }
+
+    // Writes queued frames to the socket (blocking mode); only one drain runs at a time
+    private void drainOutbound() {
+        try {
+            if (out == null) {
+                out = new BufferedOutputStream(clientSocket.getOutputStream(), 8192);
+            }
+            do {
+                while (writeBatch() > 0) {
+                    out.flush();
+                }
+            } while (outbound.finishDrain());
+
+            if (outbound.isClosing()) {
+                clientSocket.close();
+            }
+        } catch (IOException e) {
+            logger.warning("Write failed to " + clientName + ": " + e.getMessage());
+            outbound.close();
+            try {
+                clientSocket.close();
+            } catch (IOException closeError) {
+                logger.warning("Error closing client socket: " + closeError.getMessage());
+            }
+        }
+    }
+
+    // Buffers up to BATCH_MAX_FRAMES frames for a single flush. When the previous batch carried
+    // more than one frame the client is under load, so it lingers up to the max latency for the
+    // batch to fill; under light traffic it returns at once and latency is unchanged
+    private int writeBatch() throws IOException {
+        int batched = 0;
+        long deadline = 0;
+        while (batched < ServerConfig.BATCH_MAX_FRAMES) {
+            ByteBuffer frame = outbound.poll();
+            if (frame == null) {
+                if (batched == 0 || !busyWriter || ServerConfig.BATCH_MAX_LATENCY_MICROS <= 0) {
+                    break;
+                }
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + TimeUnit.MICROSECONDS.toNanos(ServerConfig.BATCH_MAX_LATENCY_MICROS);
+                } else if (now >= deadline) {
+                    break;
+                }
+                LockSupport.parkNanos(Math.min(50_000, deadline - now));
+                continue;
+            }
+            writeFrame(out, frame);
+            server.getMetrics().bytesOut.add(frame.remaining());
+            batched++;
+        }
+        busyWriter = batched > 1;
+        return batched;
+    }
+
+    // Writes a (possibly shared) frame using absolute reads, leaving its position untouched
+    private void writeFrame(OutputStream out, ByteBuffer frame) throws IOException {
+        if (frame.hasArray()) {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            return;
+        }
+        if (writeScratch == null) {
+            writeScratch = new byte[8192];
+        }
+        for (int pos = frame.position(); pos < frame.limit(); ) {
+            int chunk = Math.min(writeScratch.length, frame.limit() - pos);
+            frame.get(pos, writeScratch, 0, chunk);
+            out.write(writeScratch, 0, chunk);
+            pos += chunk;
+        }
+    }
+
+    // Closes the connection; the reading side then runs the cleanup
+    public void close() throws IOException {
+        if (connection != null) {
+            connection.close();
+        } else {
+            outbound.close();
             clientSocket.close();
+        }
+    }
+
+    // Cleans up resources when client disconnects. A v2 client that dropped without saying exit
+    // keeps its session for the grace window, and its leave is only announced if it does not resume
+    void cleanupClient() {
+        try {
+            RoomRegistry.Room current = room;
+            if (current != null) {
+                room = null;
+                server.getRooms().leave(this, current);
+            }
+            // The user stays present while the session is held or was taken over by a new connection
+            boolean present = session != null && !exited;
+            if (session != null && exited) {
+                server.getSessions().close(session);
+            } else if (present) {
+                String roomName = current == null ? RoomRegistry.LOBBY : current.name;
+                if (server.getSessions().detach(session, this, roomName, acked)) {
+                    server.log(clientName + " dropped; session held for resume.");
+                } else {
+                    server.log(clientName + " reconnected; old connection closed.");
+                }
+            }
+            if (clientName != null && !present) {
+                // Nobody is told about leaves while the server drains; everyone is leaving
+                if (current != null && !server.isDraining()) {
+                    server.broadcast(current, ChatMessage.left(clientName), this);
+                }
+                server.log(clientName + " disconnected.");
+            }
+            server.removeClient(this);
+            close();
         } catch (IOException e) {
             logger.warning("Cleanup error: " + e.getMessage());
         }
@@ -92,6 +579,42 @@ public class ServerClient1handler implements Runnable {
         return clientSocket;
     }
 
+    // Wire protocol chosen in the handshake: 0 before it, then LEGACY or WireProtocol.VERSION
+    int getProtocol() {
+        return protocol;
+    }
+
+    // Returns true when the client negotiated the binary v2 protocol
+    boolean isV2() {
+        return protocol == WireProtocol.VERSION;
+    }
+
+    // Frames waiting in the client's outbound queue
+    int getOutboundDepth() {
+        return outbound.size();
+    }
+
+    // Seq up to which the client got the journal's history in the handshake
+    long getReplayedThrough() {
+        return replayedThrough;
+    }
+
+    // Highest seq the client acknowledged
+    long getAcked() {
+        return acked;
+    }
+
+    // Name of the room the client is in, or null before the handshake
+    String getRoomName() {
+        RoomRegistry.Room current = room;
+        return current == null ? null : current.name;
+    }
+
+    // Returns true when v2 frames to this client may be compressed
+    boolean usesDeflate() {
+        return deflate;
+    }
+
     // Returns the client's name
     public String getClientName() {
         return clientName;
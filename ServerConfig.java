@@ -0,0 +1,230 @@
+import java.util.logging.Logger;
+
+// Server settings read once from system properties (-Dchat.xxx=...)
+public final class ServerConfig {
+
+    private static final Logger logger = Logger.getLogger(ServerConfig.class.getName());
+
+    // Port the chat server listens on
+    public static final int PORT = intProperty("chat.port", 7777);
+
+    // "blocking" (one thread per client) or "nio" (selector event loops)
+    public static final String MODE = System.getProperty("chat.server.mode", "blocking").trim().toLowerCase();
+
+    // Number of NIO event-loop threads (defaults to one per core)
+    public static final int IO_THREADS = intProperty("chat.io.threads", Runtime.getRuntime().availableProcessors());
+
+    // Executor for blocking handlers: "platform", "virtual" or "pool"
+    public static final String EXECUTOR = System.getProperty("chat.server.executor", "platform").trim().toLowerCase();
+
+    // Reader thread count for the "pool" executor; outbound drains always get their own threads
+    public static final int POOL_SIZE = intProperty("chat.pool.size", 256);
+
+    // Maximum frames queued per client before the overflow policy applies
+    public static final int OUTBOUND_CAPACITY = intProperty("chat.outbound.capacity", 1024);
+
+    // Maximum bytes queued per client before the overflow policy applies
+    public static final int OUTBOUND_MAX_BYTES = intProperty("chat.outbound.max.bytes", 1024 * 1024);
+
+    // What to do with a slow consumer: drop-oldest, drop-newest or disconnect
+    public static final OverflowPolicy OUTBOUND_POLICY = policyProperty("chat.outbound.policy", OverflowPolicy.DISCONNECT);
+
+    // How long a disconnected slow consumer gets to receive its reason frame
+    public static final int SLOW_CONSUMER_GRACE_MS = intProperty("chat.slow.consumer.grace.ms", 2000);
+
+    // Encode broadcast frames into direct buffers (saves a copy per write on the NIO path)
+    public static final boolean DIRECT_FRAMES = Boolean.getBoolean("chat.frames.direct");
+
+    // Most frames coalesced into one buffered write / flush
+    public static final int BATCH_MAX_FRAMES = intProperty("chat.batch.max.frames", 64);
+
+    // How long a busy writer may wait for its batch to fill before flushing (0 disables)
+    public static final int BATCH_MAX_LATENCY_MICROS = intProperty("chat.batch.max.latency.us", 1000);
+
+    // Optional file with auto-response rules (see AutoResponder); built-in rules when unset
+    public static final String AUTORESPONSE_RULES = System.getProperty("chat.autoresponse.rules");
+
+    // Largest payload accepted or sent in a v2 (binary protocol) frame
+    public static final int MAX_PAYLOAD_BYTES = intProperty("chat.max.payload.bytes", 256 * 1024);
+
+    // Accept per-message DEFLATE from v2 clients that ask for it
+    public static final boolean COMPRESSION = !"false".equalsIgnoreCase(System.getProperty("chat.compression", "true").trim());
+
+    // Smallest v2 payload worth compressing
+    public static final int COMPRESSION_MIN_BYTES = intProperty("chat.compression.min.bytes", 512);
+
+    // DEFLATE level, 1 (fastest) to 9 (smallest)
+    public static final int COMPRESSION_LEVEL = intProperty("chat.compression.level", 1);
+
+    // File the server log is appended to; no file output when unset
+    public static final String LOG_FILE = System.getProperty("chat.log.file");
+
+    // Log lines that may wait for the log writer before new lines are dropped
+    public static final int LOG_BUFFER = intProperty("chat.log.buffer", 65536);
+
+    // Lines kept in the server window's log view
+    public static final int UI_MAX_LINES = intProperty("chat.ui.max.lines", 2000);
+
+    // How often the server window applies new log lines
+    public static final int UI_REFRESH_MS = intProperty("chat.ui.refresh.ms", 200);
+
+    // Directory of the message journal used for history replay; no journal when unset
+    public static final String JOURNAL_DIR = System.getProperty("chat.journal.dir");
+
+    // Size of each journal segment file
+    public static final int JOURNAL_SEGMENT_BYTES = intProperty("chat.journal.segment.mb", 64) * 1024 * 1024;
+
+    // Journal size above which the oldest segments are deleted (0 keeps everything)
+    public static final long JOURNAL_RETENTION_BYTES = intProperty("chat.journal.retention.mb", 1024) * 1024L * 1024L;
+
+    // Age after which a segment is deleted (0 keeps segments regardless of age)
+    public static final int JOURNAL_RETENTION_HOURS = intProperty("chat.journal.retention.hours", 168);
+
+    // How often journal writes are forced to disk; everything appended in between shares one sync
+    public static final int JOURNAL_SYNC_MS = intProperty("chat.journal.sync.ms", 100);
+
+    // Replay window: a reconnecting client catches up from at most the newest this many journaled
+    // messages of its room (server-wide notices included)
+    public static final int JOURNAL_REPLAY_MAX = intProperty("chat.journal.replay.max", 500);
+
+    // How far back a replay reads looking for its room's messages before it gives up on older ones
+    public static final int JOURNAL_REPLAY_SCAN_MB = intProperty("chat.journal.replay.scan.mb", 64);
+
+    // Threads reading journal history for reconnecting clients, off the NIO event loops
+    public static final int JOURNAL_REPLAY_THREADS = intProperty("chat.journal.replay.threads", 2);
+
+    // How long a dropped v2 client's session waits for it to reconnect (0 disables sessions)
+    public static final int SESSION_GRACE_MS = intProperty("chat.session.grace.ms", 30000);
+
+    // Local port of the plain-text metrics endpoint (0 disables it; the MBean is always registered)
+    public static final int METRICS_PORT = intProperty("chat.metrics.port", 0);
+
+    // Interval over which metric rates and latency percentiles are computed
+    public static final int METRICS_INTERVAL_MS = intProperty("chat.metrics.interval.ms", 5000);
+
+    // Most connected clients; further connections are refused (0, the default, means no limit)
+    public static final int MAX_CONNECTIONS = intProperty("chat.max.connections", 0);
+
+    // New connections per second accepted from one address (0, the default, disables the per-address limit)
+    public static final int ACCEPT_RATE_PER_IP = intProperty("chat.accept.rate.per.ip", 0);
+
+    // Connections one address may open at once before the per-second rate applies
+    public static final int ACCEPT_BURST_PER_IP = intProperty("chat.accept.burst.per.ip", 50);
+
+    // Whether loopback clients (load tests, local tools) are rate limited too
+    public static final boolean ACCEPT_LIMIT_LOOPBACK = Boolean.getBoolean("chat.accept.limit.loopback");
+
+    // Length of the kernel queue of connections waiting to be accepted
+    public static final int ACCEPT_BACKLOG = intProperty("chat.accept.backlog", 1024);
+
+    // Acceptor threads in NIO mode; more than one binds one SO_REUSEPORT socket each where supported
+    public static final int ACCEPT_THREADS = intProperty("chat.accept.threads", 1);
+
+    // Messages per second one client may send (0, the default, disables the per-client limit)
+    public static final int FLOOD_RATE = intProperty("chat.flood.rate", 0);
+
+    // Messages one client may send at once before the per-second rate applies
+    public static final int FLOOD_BURST = intProperty("chat.flood.burst", 50);
+
+    // Messages per second from all clients together (0 disables the global limit)
+    public static final int FLOOD_GLOBAL_RATE = intProperty("chat.flood.global.rate", 0);
+
+    // Burst allowance of the global limit
+    public static final int FLOOD_GLOBAL_BURST = intProperty("chat.flood.global.burst", 1000);
+
+    // What happens to messages beyond the limits: delay, drop or kick
+    public static final FloodPolicy FLOOD_POLICY = floodPolicyProperty("chat.flood.policy", FloodPolicy.DELAY);
+
+    // Port other cluster nodes connect to (0 runs a single, unclustered server)
+    public static final int CLUSTER_PORT = intProperty("chat.cluster.port", 0);
+
+    // Comma-separated host:port cluster ports of the other nodes
+    public static final String CLUSTER_PEERS = System.getProperty("chat.cluster.peers", "");
+
+    // Name this node announces to its peers
+    public static final String CLUSTER_NODE = System.getProperty("chat.cluster.node", "node-" + CLUSTER_PORT);
+
+    // Address the cluster port listens on; loopback unless the nodes run on different hosts
+    public static final String CLUSTER_BIND = System.getProperty("chat.cluster.bind", "127.0.0.1");
+
+    // Secret shared by the nodes, proving a connecting peer belongs to the cluster. Required when
+    // chat.cluster.bind is not a loopback address
+    public static final String CLUSTER_SECRET = System.getProperty("chat.cluster.secret");
+
+    // Key store (PKCS12 or JKS) holding the server's certificate and key; plain TCP when unset
+    public static final String TLS_KEYSTORE = System.getProperty("chat.tls.keystore");
+
+    // Password of the key store and of the key in it
+    public static final String TLS_KEYSTORE_PASSWORD = System.getProperty("chat.tls.keystore.password", "changeit");
+
+    // Threads running TLS handshake computations for the NIO event loops
+    public static final int TLS_HANDSHAKE_THREADS = intProperty("chat.tls.handshake.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    // TLS sessions kept for resumption, and for how many seconds a client may resume one
+    public static final int TLS_SESSION_CACHE = intProperty("chat.tls.session.cache", 20000);
+    public static final int TLS_SESSION_TIMEOUT_S = intProperty("chat.tls.session.timeout.s", 86400);
+
+    // How long a drain (graceful stop) lets clients' queued frames flush before cutting connections
+    public static final int DRAIN_TIMEOUT_MS = intProperty("chat.drain.timeout.ms", 10000);
+
+    // Reconnect delays a drain hands out: the first client waits min, the others are spread evenly
+    // over the following spread milliseconds so they do not all come back at once
+    public static final int DRAIN_RECONNECT_MIN_MS = intProperty("chat.drain.reconnect.min.ms", 1000);
+    public static final int DRAIN_RECONNECT_SPREAD_MS = intProperty("chat.drain.reconnect.spread.ms", 5000);
+
+    // File a draining server leaves its sessions in for the process taking over its port, which
+    // polls for it. Setting it also binds the port with SO_REUSEPORT, so the new process can start
+    // listening before the old one stops. With chat.journal.dir, start the new process once the old
+    // one has stopped instead (a journal has one writer); the reconnect delays cover the gap
+    public static final String HANDOFF_FILE = System.getProperty("chat.handoff.file");
+
+    private ServerConfig() {
+    }
+
+    // Returns true when the selector based engine should be used
+    public static boolean isNioMode() {
+        return "nio".equals(MODE);
+    }
+
+    // Reads an overflow policy property, falling back to the default on bad input
+    static OverflowPolicy policyProperty(String name, OverflowPolicy defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return OverflowPolicy.fromName(value);
+        } catch (IllegalArgumentException e) {
+            logger.warning("Invalid value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static FloodPolicy floodPolicyProperty(String name, FloodPolicy defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return FloodPolicy.fromName(value);
+        } catch (IllegalArgumentException e) {
+            logger.warning("Invalid value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    // Reads an integer property, falling back to the default on bad input
+    static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warning("Invalid value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,446 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Server instrumentation. Hot paths only bump LongAdders (striped, so threads do not contend)
+// or record into lock-free histograms; every chat.metrics.interval.ms the server's scheduler
+// turns the counters into rates and swaps the histograms into a finished window. The numbers are
+// exposed as an MBean and, with -Dchat.metrics.port, as plain "name value" lines on
+// http://127.0.0.1:<port>/metrics
+public final class ServerMetrics implements ServerMetricsMBean {
+
+    private static final Logger logger = Logger.getLogger(ServerMetrics.class.getName());
+
+    static final String OBJECT_NAME = "chat:type=ServerMetrics";
+
+    private final ChatServer server;
+
+    final LongAdder accepted = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder blocked = new LongAdder();
+    final LongAdder throttled = new LongAdder();
+    // Applications of each outbound overflow policy
+    final LongAdder outboundDroppedOldest = new LongAdder();
+    final LongAdder outboundDroppedNewest = new LongAdder();
+    final LongAdder outboundDisconnects = new LongAdder();
+    final LongAdder broadcasts = new LongAdder();
+    final LongAdder relayedIn = new LongAdder();
+    final LongAdder relayedOut = new LongAdder();
+    final LongAdder relayDropped = new LongAdder();
+    final LongAdder tlsHandshakes = new LongAdder();
+    final LongAdder tlsResumed = new LongAdder();
+    final LongAdder tlsFailures = new LongAdder();
+    private final LatencyHistogram fanout = new LatencyHistogram();
+    private final LatencyHistogram tlsHandshake = new LatencyHistogram();
+    private final LatencyHistogram edtLag = new LatencyHistogram();
+
+    // Results of the last interval, replaced as a whole by sample()
+    private volatile Window window = new Window();
+    private long[] previousCounts = new long[5];
+    private long previousNanos = System.nanoTime();
+
+    private HttpServer endpoint;
+    private ObjectName registeredName;
+
+    // One finished interval
+    private static final class Window {
+        final double[] rates = new double[5];
+        final LatencyHistogram fanout = new LatencyHistogram();
+        final LatencyHistogram edtLag = new LatencyHistogram();
+        final LatencyHistogram tlsHandshake = new LatencyHistogram();
+    }
+
+    ServerMetrics(ChatServer server) {
+        this.server = server;
+    }
+
+    // Counter an outbound queue with the given policy bumps when the policy fires
+    LongAdder overflows(OverflowPolicy policy) {
+        switch (policy) {
+            case DROP_OLDEST:
+                return outboundDroppedOldest;
+            case DROP_NEWEST:
+                return outboundDroppedNewest;
+            default:
+                return outboundDisconnects;
+        }
+    }
+
+    // Time one broadcast spent encoding and enqueueing for its recipients
+    void recordFanout(long nanos) {
+        fanout.record(nanos);
+    }
+
+    // Duration of one TLS handshake with a client
+    void recordTlsHandshake(long nanos, boolean resumed) {
+        tlsHandshakes.increment();
+        if (resumed) {
+            tlsResumed.increment();
+        }
+        tlsHandshake.record(nanos);
+    }
+
+    // How late a UI timer tick ran on the event dispatch thread
+    public void recordEdtLag(long nanos) {
+        edtLag.record(nanos);
+    }
+
+    // Wraps a blocking client's input so the bytes read are counted
+    InputStream countingInput(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    // Closes the current interval: computes rates and publishes the histograms (scheduler thread)
+    void sample() {
+        long now = System.nanoTime();
+        long[] counts = {accepted.sum(), messagesIn.sum(), messagesOut.sum(), bytesIn.sum(), bytesOut.sum()};
+        double seconds = Math.max(1, now - previousNanos) / 1e9;
+        Window next = new Window();
+        for (int i = 0; i < counts.length; i++) {
+            next.rates[i] = (counts[i] - previousCounts[i]) / seconds;
+        }
+        fanout.drainInto(next.fanout);
+        edtLag.drainInto(next.edtLag);
+        tlsHandshake.drainInto(next.tlsHandshake);
+        previousCounts = counts;
+        previousNanos = now;
+        window = next;
+    }
+
+    // Registers the MBean and starts the scrape endpoint if one is configured
+    synchronized void start() {
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!mbeans.isRegistered(name)) {
+                mbeans.registerMBean(this, name);
+                registeredName = name;
+            }
+        } catch (JMException e) {
+            logger.warning("Could not register metrics MBean: " + e.getMessage());
+        }
+
+        if (ServerConfig.METRICS_PORT > 0 && endpoint == null) {
+            try {
+                endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), ServerConfig.METRICS_PORT), 0);
+                endpoint.createContext("/metrics", exchange -> {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                endpoint.start();
+                server.log("Metrics on http://127.0.0.1:" + endpoint.getAddress().getPort() + "/metrics");
+            } catch (IOException e) {
+                server.log("Could not start metrics endpoint: " + e.getMessage());
+                endpoint = null;
+            }
+        }
+    }
+
+    // Stops the endpoint and unregisters the MBean
+    synchronized void stop() {
+        if (endpoint != null) {
+            endpoint.stop(0);
+            endpoint = null;
+        }
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                logger.warning("Could not unregister metrics MBean: " + e.getMessage());
+            }
+            registeredName = null;
+        }
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return server.getClientCount();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public double getAcceptsPerSecond() {
+        return window.rates[0];
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return window.rates[1];
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return window.rates[2];
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return window.rates[3];
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return window.rates[4];
+    }
+
+    @Override
+    public long getBlockedMessages() {
+        return blocked.sum();
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        return throttled.sum();
+    }
+
+    @Override
+    public long getOutboundDroppedOldest() {
+        return outboundDroppedOldest.sum();
+    }
+
+    @Override
+    public long getOutboundDroppedNewest() {
+        return outboundDroppedNewest.sum();
+    }
+
+    @Override
+    public long getOutboundDisconnects() {
+        return outboundDisconnects.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    @Override
+    public double getFanoutLatencyP50Micros() {
+        return window.fanout.percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getFanoutLatencyP99Micros() {
+        return window.fanout.percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getFanoutLatencyMaxMicros() {
+        return window.fanout.max() / 1e3;
+    }
+
+    @Override
+    public int getOutboundQueueDepthMax() {
+        int max = 0;
+        for (ServerClient1handler client : server.getClients()) {
+            max = Math.max(max, client.getOutboundDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public long getOutboundQueueDepthTotal() {
+        long total = 0;
+        for (ServerClient1handler client : server.getClients()) {
+            total += client.getOutboundDepth();
+        }
+        return total;
+    }
+
+    @Override
+    public double getEdtLagP99Millis() {
+        return window.edtLag.percentile(99) / 1e6;
+    }
+
+    @Override
+    public double getEdtLagMaxMillis() {
+        return window.edtLag.max() / 1e6;
+    }
+
+    @Override
+    public int getRooms() {
+        return server.getRooms().size();
+    }
+
+    @Override
+    public int getSessions() {
+        return server.getSessions().size();
+    }
+
+    @Override
+    public long getRelayedIn() {
+        return relayedIn.sum();
+    }
+
+    @Override
+    public long getRelayedOut() {
+        return relayedOut.sum();
+    }
+
+    @Override
+    public long getRelayDropped() {
+        return relayDropped.sum();
+    }
+
+    @Override
+    public int getClusterMembers() {
+        ClusterNode cluster = server.getCluster();
+        return getActiveConnections() + (cluster != null ? cluster.remoteMemberCount() : 0);
+    }
+
+    @Override
+    public long getTlsHandshakes() {
+        return tlsHandshakes.sum();
+    }
+
+    @Override
+    public long getTlsResumedHandshakes() {
+        return tlsResumed.sum();
+    }
+
+    @Override
+    public long getTlsHandshakeFailures() {
+        return tlsFailures.sum();
+    }
+
+    @Override
+    public double getTlsHandshakeP50Millis() {
+        return window.tlsHandshake.percentile(50) / 1e6;
+    }
+
+    @Override
+    public double getTlsHandshakeP99Millis() {
+        return window.tlsHandshake.percentile(99) / 1e6;
+    }
+
+    @Override
+    public long getLogLinesDropped() {
+        return server.getLog().droppedCount();
+    }
+
+    @Override
+    public String scrape() {
+        Window current = window;
+        StringBuilder text = new StringBuilder(2048);
+        line(text, "chat_connections_active", getActiveConnections());
+        line(text, "chat_connections_accepted_total", getAcceptedConnections());
+        line(text, "chat_connections_accepted_per_second", current.rates[0]);
+        line(text, "chat_connections_rejected_total", getRejectedConnections());
+        line(text, "chat_messages_in_total", getMessagesIn());
+        line(text, "chat_messages_in_per_second", current.rates[1]);
+        line(text, "chat_messages_out_total", getMessagesOut());
+        line(text, "chat_messages_out_per_second", current.rates[2]);
+        line(text, "chat_bytes_in_total", getBytesIn());
+        line(text, "chat_bytes_in_per_second", current.rates[3]);
+        line(text, "chat_bytes_out_total", getBytesOut());
+        line(text, "chat_bytes_out_per_second", current.rates[4]);
+        line(text, "chat_messages_blocked_total", getBlockedMessages());
+        line(text, "chat_messages_throttled_total", getThrottledMessages());
+        line(text, "chat_broadcasts_total", getBroadcasts());
+        quantiles(text, "chat_broadcast_fanout_seconds", current.fanout);
+        line(text, "chat_outbound_queue_depth_max", getOutboundQueueDepthMax());
+        line(text, "chat_outbound_queue_depth_total", getOutboundQueueDepthTotal());
+        line(text, "chat_outbound_dropped_oldest_total", getOutboundDroppedOldest());
+        line(text, "chat_outbound_dropped_newest_total", getOutboundDroppedNewest());
+        line(text, "chat_outbound_disconnects_total", getOutboundDisconnects());
+        quantiles(text, "chat_edt_lag_seconds", current.edtLag);
+        line(text, "chat_rooms", getRooms());
+        line(text, "chat_sessions", getSessions());
+        line(text, "chat_cluster_relayed_in_total", getRelayedIn());
+        line(text, "chat_cluster_relayed_out_total", getRelayedOut());
+        line(text, "chat_cluster_relay_dropped_total", getRelayDropped());
+        line(text, "chat_cluster_members", getClusterMembers());
+        line(text, "chat_tls_handshakes_total", getTlsHandshakes());
+        line(text, "chat_tls_handshakes_resumed_total", getTlsResumedHandshakes());
+        line(text, "chat_tls_handshake_failures_total", getTlsHandshakeFailures());
+        quantiles(text, "chat_tls_handshake_seconds", current.tlsHandshake);
+        line(text, "chat_log_lines_dropped_total", getLogLinesDropped());
+        return text.toString();
+    }
+
+    private static void line(StringBuilder text, String name, double value) {
+        text.append(name).append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            text.append((long) value);
+        } else {
+            text.append(String.format(Locale.ROOT, "%.3f", value));
+        }
+        text.append('\n');
+    }
+
+    // Summary-style lines for a nanosecond histogram, in seconds
+    private static void quantiles(StringBuilder text, String name, LatencyHistogram histogram) {
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(String.format(Locale.ROOT, "%.9f", histogram.percentile(quantile * 100) / 1e9)).append('\n');
+        }
+        text.append(name).append("_max ").append(String.format(Locale.ROOT, "%.9f", histogram.max() / 1e9)).append('\n');
+        text.append(name).append("_count ").append(histogram.count()).append('\n');
+    }
+}
@@ -0,0 +1,86 @@
+// JMX view of ServerMetrics (ObjectName chat:type=ServerMetrics). Rates and latencies cover the
+// last chat.metrics.interval.ms; counters are totals since the server was created
+public interface ServerMetricsMBean {
+
+    int getActiveConnections();
+
+    long getAcceptedConnections();
+
+    double getAcceptsPerSecond();
+
+    long getRejectedConnections();
+
+    long getMessagesIn();
+
+    double getMessagesInPerSecond();
+
+    long getMessagesOut();
+
+    double getMessagesOutPerSecond();
+
+    long getBytesIn();
+
+    double getBytesInPerSecond();
+
+    long getBytesOut();
+
+    double getBytesOutPerSecond();
+
+    long getBlockedMessages();
+
+    // Inbound messages over a flood limit (delayed, dropped or answered with a kick)
+    long getThrottledMessages();
+
+    long getBroadcasts();
+
+    double getFanoutLatencyP50Micros();
+
+    double getFanoutLatencyP99Micros();
+
+    double getFanoutLatencyMaxMicros();
+
+    int getOutboundQueueDepthMax();
+
+    long getOutboundQueueDepthTotal();
+
+    // Frames discarded by the drop-oldest or drop-newest outbound policy
+    long getOutboundDroppedOldest();
+
+    long getOutboundDroppedNewest();
+
+    // Clients disconnected by the disconnect outbound policy
+    long getOutboundDisconnects();
+
+    double getEdtLagP99Millis();
+
+    double getEdtLagMaxMillis();
+
+    int getRooms();
+
+    int getSessions();
+
+    long getRelayedIn();
+
+    long getRelayedOut();
+
+    long getRelayDropped();
+
+    // Connections on this node plus the members of the other cluster nodes
+    int getClusterMembers();
+
+    long getTlsHandshakes();
+
+    // Handshakes that resumed an earlier session instead of negotiating a new one
+    long getTlsResumedHandshakes();
+
+    long getTlsHandshakeFailures();
+
+    double getTlsHandshakeP50Millis();
+
+    double getTlsHandshakeP99Millis();
+
+    long getLogLinesDropped();
+
+    // Every metric in the text format served by the scrape endpoint
+    String scrape();
+}
@@ -0,0 +1,222 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Resumable v2 sessions. Every v2 client gets a token in its HELLO; when its connection drops
+// without an exit the session is held for chat.session.grace.ms instead of announcing the leave.
+// A client that reconnects with resume=<token> inside that window takes the session over: same
+// name and room, no join or leave broadcast, and (with a journal) only the messages after its
+// last acknowledged seq are redelivered. Sessions not resumed in time are announced as left.
+// A draining server can save() its sessions for the process taking over its port, which load()s
+// them as held sessions, so a restart looks to the clients like any other dropped connection
+final class SessionRegistry {
+
+    // First int of a handoff file
+    private static final int HANDOFF_VERSION = 1;
+
+    // One user's presence across connections
+    static final class Session {
+        final String token;
+        final String name;
+        // All guarded by the session's monitor
+        private ServerClient1handler owner;
+        private String room = RoomRegistry.LOBBY;
+        private long acked;
+        private long generation;
+        private boolean expired;
+
+        Session(String token, String name, ServerClient1handler owner) {
+            this.token = token;
+            this.name = name;
+            this.owner = owner;
+        }
+
+        synchronized String room() {
+            return room;
+        }
+
+        synchronized long acked() {
+            return acked;
+        }
+    }
+
+    private final ChatServer server;
+    private final long graceMillis;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    SessionRegistry(ChatServer server, long graceMillis) {
+        this.server = server;
+        this.graceMillis = graceMillis;
+    }
+
+    // Returns false when sessions are disabled (-Dchat.session.grace.ms=0)
+    boolean isEnabled() {
+        return graceMillis > 0;
+    }
+
+    // Starts a session for a newly joined client, or returns null when sessions are disabled.
+    // lastSeq is the newest broadcast at the join, which a resume never needs to replay
+    Session create(String name, ServerClient1handler owner, long lastSeq) {
+        if (!isEnabled()) {
+            return null;
+        }
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), name, owner);
+        session.acked = lastSeq;
+        sessions.put(session.token, session);
+        return session;
+    }
+
+    // Hands a session to a new connection, closing the old one if it is still open; returns null
+    // if the token is unknown or the session already expired
+    Session resume(String token, ServerClient1handler owner) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        ServerClient1handler previous;
+        synchronized (session) {
+            if (session.expired) {
+                return null;
+            }
+            previous = session.owner;
+            if (previous != null) {
+                // The old connection never detached, so its room and acks were not written back;
+                // its cleanup will not do it either once the owner has changed
+                String previousRoom = previous.getRoomName();
+                if (previousRoom != null) {
+                    session.room = previousRoom;
+                }
+                session.acked = Math.max(session.acked, previous.getAcked());
+            }
+            session.owner = owner;
+            session.generation++;
+        }
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException e) {
+                server.log("Error closing superseded connection of " + session.name + ": " + e.getMessage());
+            }
+        }
+        return session;
+    }
+
+    // Called when a session's connection ends without an exit. Returns true if the session is now
+    // held for the grace window, false if another connection already took it over
+    boolean detach(Session session, ServerClient1handler owner, String room, long acked) {
+        long generation;
+        synchronized (session) {
+            if (session.owner != owner) {
+                return false;
+            }
+            session.owner = null;
+            session.room = room;
+            session.acked = Math.max(session.acked, acked);
+            generation = ++session.generation;
+        }
+        server.schedule(() -> expire(session, generation), graceMillis);
+        return true;
+    }
+
+    // Announces the leave of a session that was not resumed within the grace window
+    private void expire(Session session, long generation) {
+        String room;
+        synchronized (session) {
+            if (session.owner != null || session.generation != generation) {
+                return;
+            }
+            session.expired = true;
+            room = session.room;
+        }
+        sessions.remove(session.token, session);
+        RoomRegistry.Room current = server.getRooms().get(room);
+        if (current != null) {
+            server.broadcast(current, ChatMessage.left(session.name), null);
+        }
+        server.log(session.name + " disconnected (session expired).");
+    }
+
+    // Ends a session at once (the client said exit)
+    void close(Session session) {
+        synchronized (session) {
+            session.expired = true;
+        }
+        sessions.remove(session.token, session);
+    }
+
+    // Writes every live session, connected or held, and the server's last message seq to file.
+    // The file is written aside and moved into place, so a reader sees all of it or nothing.
+    // Returns the number of sessions saved
+    int save(Path file, long lastSeq) throws IOException {
+        List<Session> saved = new ArrayList<>();
+        for (Session session : sessions.values()) {
+            synchronized (session) {
+                if (session.expired) {
+                    continue;
+                }
+                ServerClient1handler owner = session.owner;
+                String ownerRoom = owner != null ? owner.getRoomName() : null;
+                Session copy = new Session(session.token, session.name, null);
+                copy.room = ownerRoom != null ? ownerRoom : session.room;
+                copy.acked = owner != null ? Math.max(session.acked, owner.getAcked()) : session.acked;
+                saved.add(copy);
+            }
+        }
+        Path partial = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partial)))) {
+            out.writeInt(HANDOFF_VERSION);
+            out.writeLong(lastSeq);
+            out.writeInt(saved.size());
+            for (Session session : saved) {
+                out.writeUTF(session.token);
+                out.writeUTF(session.name);
+                out.writeUTF(session.room);
+                out.writeLong(session.acked);
+            }
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return saved.size();
+    }
+
+    // Takes over the sessions in a file written by save(), holding each for the grace window as if
+    // its connection had just dropped here. Tokens already known are kept. Returns the saved seq
+    long load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != HANDOFF_VERSION) {
+                throw new IOException("Unknown session handoff format in " + file);
+            }
+            long lastSeq = in.readLong();
+            int count = in.readInt();
+            int loaded = 0;
+            for (int i = 0; i < count; i++) {
+                Session session = new Session(in.readUTF(), in.readUTF(), null);
+                session.room = in.readUTF();
+                session.acked = in.readLong();
+                if (sessions.putIfAbsent(session.token, session) == null) {
+                    server.schedule(() -> expire(session, 0), graceMillis);
+                    loaded++;
+                }
+            }
+            server.log("Took over " + loaded + " sessions from the previous server (last seq " + lastSeq + ").");
+            return lastSeq;
+        }
+    }
+
+    // Sessions currently connected or held
+    int size() {
+        return sessions.size();
+    }
+}
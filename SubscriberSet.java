@@ -0,0 +1,117 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// Set of subscribers built for fan-out: iteration takes no lock and never sees a half-applied
+// change. Members live in copy-on-write segments of at most SEGMENT_SIZE entries, so a join or
+// leave copies one small segment plus the segment table instead of the whole membership; a
+// room with 100k members pays for ~650 reference copies per change, not 100k.
+// Writers serialize on the set's monitor
+final class SubscriberSet<T> implements Iterable<T> {
+
+    static final int SEGMENT_SIZE = 256;
+
+    private static final Object[][] EMPTY = new Object[0][];
+
+    // Published snapshot; segments are never modified after publication
+    private volatile Object[][] segments = EMPTY;
+    // Which segment each member is in (guarded by this)
+    private final Map<T, Integer> index = new IdentityHashMap<>();
+
+    // Adds a member; returns false if it was already present
+    synchronized boolean add(T member) {
+        if (index.containsKey(member)) {
+            return false;
+        }
+        Object[][] current = segments;
+        int target = -1;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].length < SEGMENT_SIZE) {
+                target = i;
+                break;
+            }
+        }
+
+        Object[][] next;
+        if (target < 0) {
+            target = current.length;
+            next = Arrays.copyOf(current, current.length + 1);
+            next[target] = new Object[] {member};
+        } else {
+            next = current.clone();
+            Object[] segment = Arrays.copyOf(current[target], current[target].length + 1);
+            segment[segment.length - 1] = member;
+            next[target] = segment;
+        }
+        index.put(member, target);
+        segments = next;
+        return true;
+    }
+
+    // Removes a member; returns false if it was not present
+    synchronized boolean remove(T member) {
+        Integer position = index.remove(member);
+        if (position == null) {
+            return false;
+        }
+        Object[][] next = segments.clone();
+        Object[] segment = next[position];
+        Object[] smaller = new Object[segment.length - 1];
+        for (int i = 0, j = 0; i < segment.length; i++) {
+            if (segment[i] != member) {
+                smaller[j++] = segment[i];
+            }
+        }
+        next[position] = smaller;
+        segments = next;
+        return true;
+    }
+
+    synchronized boolean contains(T member) {
+        return index.containsKey(member);
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    // Removes every member
+    synchronized void clear() {
+        index.clear();
+        segments = EMPTY;
+    }
+
+    // Iterates the snapshot current when iteration starts; later changes are not seen
+    @Override
+    public Iterator<T> iterator() {
+        Object[][] snapshot = segments;
+        return new Iterator<T>() {
+            private int segment;
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                while (segment < snapshot.length && position >= snapshot[segment].length) {
+                    segment++;
+                    position = 0;
+                }
+                return segment < snapshot.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return (T) snapshot[segment][position++];
+            }
+        };
+    }
+}
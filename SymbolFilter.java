@@ -0,0 +1,36 @@
+// Only lets through messages made of ASCII letters, digits and whitespace.
+// Same rule as the old message.matches("[a-zA-Z0-9\\s]+") but checked with a lookup table, without allocating
+public class SymbolFilter implements MessageFilter {
+
+    private static final String REASON = "Special characters are not allowed.";
+    private static final boolean[] ALLOWED = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            ALLOWED[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            ALLOWED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            ALLOWED[c] = true;
+        }
+        for (char c : new char[] {' ', '\t', '\n', 0x0B, '\f', '\r'}) {
+            ALLOWED[c] = true;
+        }
+    }
+
+    @Override
+    public String check(String message) {
+        if (message.isEmpty()) {
+            return REASON;
+        }
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= ALLOWED.length || !ALLOWED[c]) {
+                return REASON;
+            }
+        }
+        return null;
+    }
+}
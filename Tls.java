@@ -0,0 +1,96 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+// TLS setup for the chat port. The server loads its certificate from a key store
+// (-Dchat.tls.keystore); clients trust the JVM's CAs or their own trust store and check that the
+// certificate names the host they dialled. A self-signed certificate for local use:
+//
+//   keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -validity 365 -storetype PKCS12
+//           -keystore chat.p12 -storepass changeit -dname CN=localhost -ext SAN=dns:localhost,ip:127.0.0.1
+//
+// and chat.p12 itself serves as the clients' trust store. Each side keeps one SSLContext: its
+// session cache is what lets a reconnecting client resume instead of repeating the full handshake
+final class Tls {
+
+    private Tls() {
+    }
+
+    // Server context from the configured key store, or null when TLS is not configured
+    static SSLContext serverContextFromConfig() throws IOException {
+        if (ServerConfig.TLS_KEYSTORE == null) {
+            return null;
+        }
+        return serverContext(ServerConfig.TLS_KEYSTORE, ServerConfig.TLS_KEYSTORE_PASSWORD.toCharArray(),
+                ServerConfig.TLS_SESSION_CACHE, ServerConfig.TLS_SESSION_TIMEOUT_S);
+    }
+
+    // Server context presenting the key store's certificate, caching sessions for resumption
+    static SSLContext serverContext(String keyStore, char[] password, int sessionCache, int sessionTimeoutSeconds)
+            throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(KeyStore.getInstance(new File(keyStore), password), password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            context.getServerSessionContext().setSessionCacheSize(sessionCache);
+            context.getServerSessionContext().setSessionTimeout(sessionTimeoutSeconds);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use key store " + keyStore + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Client context trusting the certificates in trustStore, or the JVM's CAs when it is null
+    static SSLContext clientContext(String trustStore, char[] password) throws IOException {
+        try {
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(trustStore != null ? KeyStore.getInstance(new File(trustStore), password) : null);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use trust store " + trustStore + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Engine for the server side of one NIO connection
+    static SSLEngine serverEngine(SSLContext context) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    // Server side of a blocking-mode connection; the handshake runs on the client's own thread
+    static SSLSocket serverSocket(SSLContext context, Socket accepted) throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(accepted, null, true);
+        socket.setUseClientMode(false);
+        return socket;
+    }
+
+    // Runs the client handshake over a connected socket, checking the certificate against host.
+    // Sessions are cached per host and port, so the next connection to the same server resumes
+    static SSLSocket clientHandshake(SSLContext context, Socket connected, String host, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(connected, host, port, true);
+        socket.setUseClientMode(true);
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(parameters);
+        socket.startHandshake();
+        return socket;
+    }
+
+    // A resumed session was created by an earlier handshake, before this one started
+    static boolean isResumed(SSLSession session, long handshakeStartedMillis) {
+        return session.getCreationTime() < handshakeStartedMillis;
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+
+// TLS for one NIO connection: drives an SSLEngine over the non-blocking channel so NioConnection
+// reads and writes plaintext exactly as it would on the bare channel. The expensive handshake
+// steps (signatures, key agreement) come out of the engine as delegated tasks and run on the
+// server's handshake executor, never on the event loop; the connection is resumed on its loop
+// once they finish. Ciphertext buffers are borrowed from the loop only while they hold data, so
+// an idle TLS connection costs little more than a plain one. Loop thread only
+final class TlsTransport implements NioConnection.Transport {
+
+    private static final ByteBuffer[] NO_DATA = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final NioServerEngine.EventLoop loop;
+    private final Executor handshakeExecutor;
+    private final ServerMetrics metrics;
+    // Continues the connection's reads and writes after delegated tasks or the handshake finish
+    private final Runnable resume;
+    private final long acceptedMillis = System.currentTimeMillis();
+    private final long acceptedNanos = System.nanoTime();
+
+    // Ciphertext received but not yet unwrapped, and wrapped but not yet written (null while empty)
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private boolean tasksRunning;
+    private boolean handshakeDone;
+    // Set when unwrapping stopped because the plaintext did not fit into the caller's buffer
+    private boolean inputPending;
+
+    TlsTransport(SocketChannel channel, SSLEngine engine, NioServerEngine.EventLoop loop, Executor handshakeExecutor,
+            ServerMetrics metrics, Runnable resume) {
+        this.channel = channel;
+        this.engine = engine;
+        this.loop = loop;
+        this.handshakeExecutor = handshakeExecutor;
+        this.metrics = metrics;
+        this.resume = resume;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (netIn == null) {
+            netIn = loop.borrowBuffer(packetSize());
+        }
+        int read = channel.read(netIn);
+        int produced;
+        try {
+            // After delegated tasks the engine may have handshake messages to send before reading on
+            if (!tasksRunning) {
+                advance(engine.getHandshakeStatus());
+            }
+            produced = unwrap(dst);
+        } finally {
+            if (netIn.position() == 0) {
+                loop.returnBuffer(netIn);
+                netIn = null;
+            }
+        }
+        return produced == 0 && (read < 0 || engine.isInboundDone()) ? -1 : produced;
+    }
+
+    // Unwraps buffered records into dst until records or room run out, taking handshake steps on the way
+    private int unwrap(ByteBuffer dst) throws IOException {
+        int produced = 0;
+        inputPending = false;
+        while (!tasksRunning && netIn.position() > 0) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, dst);
+            } catch (SSLException e) {
+                failed();
+                throw e;
+            } finally {
+                netIn.compact();
+            }
+            produced += result.bytesProduced();
+            if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+                inputPending = true;
+                break;
+            }
+            if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+                // An incomplete record; make room if it is larger than the buffer
+                if (!netIn.hasRemaining()) {
+                    netIn = enlarge(netIn, packetSize());
+                }
+                break;
+            }
+            if (result.getStatus() == Status.CLOSED) {
+                break;
+            }
+            HandshakeStatus status = result.getHandshakeStatus();
+            advance(status);
+            if (result.bytesConsumed() == 0 && status != HandshakeStatus.NEED_WRAP) {
+                break;
+            }
+        }
+        return produced;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long consumed = 0;
+        while (canWrite() && flush()) {
+            SSLEngineResult result = wrap(srcs, offset, length);
+            if (result.getStatus() == Status.CLOSED) {
+                throw new SSLException("TLS connection closed");
+            }
+            consumed += result.bytesConsumed();
+            if (result.bytesConsumed() == 0) {
+                advance(result.getHandshakeStatus());
+                if (engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+                    break;
+                }
+            }
+        }
+        flush();
+        return consumed;
+    }
+
+    // Application data waits for the handshake and for delegated tasks still running
+    @Override
+    public boolean canWrite() {
+        return handshakeDone && !tasksRunning;
+    }
+
+    @Override
+    public boolean flush() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        netOut.flip();
+        channel.write(netOut);
+        netOut.compact();
+        if (netOut.position() > 0) {
+            return false;
+        }
+        loop.returnBuffer(netOut);
+        netOut = null;
+        return true;
+    }
+
+    @Override
+    public int pendingInputSpace() {
+        return inputPending ? engine.getSession().getApplicationBufferSize() : 0;
+    }
+
+    // Sends close_notify if the socket takes it at once; the channel is closed right after
+    @Override
+    public void shutdown() {
+        engine.closeOutbound();
+        try {
+            while (!engine.isOutboundDone() && wrap(NO_DATA, 0, 1).bytesProduced() > 0) {
+                // collect the closing records
+            }
+            flush();
+        } catch (IOException e) {
+            // the peer is gone already
+        }
+    }
+
+    // Wraps one record into netOut, growing it when the record does not fit behind what is queued
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        while (true) {
+            if (netOut == null) {
+                netOut = loop.borrowBuffer(packetSize());
+            }
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(srcs, offset, length, netOut);
+            } catch (SSLException e) {
+                failed();
+                throw e;
+            }
+            if (result.getStatus() != Status.BUFFER_OVERFLOW) {
+                return result;
+            }
+            netOut = enlarge(netOut, packetSize());
+        }
+    }
+
+    // Takes the handshake steps the engine asks for after a wrap or unwrap
+    private void advance(HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    return;
+                case NEED_WRAP:
+                    SSLEngineResult result = wrap(NO_DATA, 0, 1);
+                    flush();
+                    if (result.getStatus() == Status.CLOSED) {
+                        return;
+                    }
+                    status = result.getHandshakeStatus();
+                    break;
+                case FINISHED:
+                    finished();
+                    status = engine.getHandshakeStatus();
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    // Runs the engine's delegated tasks on the handshake executor, then resumes on the loop
+    private void runDelegatedTasks() throws IOException {
+        tasksRunning = true;
+        try {
+            handshakeExecutor.execute(() -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                loop.execute(() -> {
+                    tasksRunning = false;
+                    resume.run();
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Server is stopping", e);
+        }
+    }
+
+    private void finished() {
+        if (handshakeDone) {
+            return;
+        }
+        handshakeDone = true;
+        metrics.recordTlsHandshake(System.nanoTime() - acceptedNanos, Tls.isResumed(engine.getSession(), acceptedMillis));
+        // Frames queued during the handshake go out now
+        loop.execute(resume);
+    }
+
+    private void failed() {
+        if (!handshakeDone) {
+            metrics.tlsFailures.increment();
+        }
+    }
+
+    private int packetSize() {
+        return engine.getSession().getPacketBufferSize();
+    }
+
+    // Copies the buffer (in write mode) into a larger one with at least extra free bytes
+    private ByteBuffer enlarge(ByteBuffer buffer, int extra) {
+        ByteBuffer larger = loop.borrowBuffer(buffer.position() + extra);
+        buffer.flip();
+        larger.put(buffer);
+        loop.returnBuffer(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,48 @@
+// Token-bucket rate limiter: holds up to burst tokens, refilled continuously at ratePerSecond.
+// Each permitted event takes one token, so bursts up to the bucket size pass at once and the
+// long-run rate is capped. Time is passed in (System.nanoTime()) so callers can share a reading
+final class TokenBucket {
+
+    private final double ratePerNano;
+    private final double burst;
+    // Guarded by this
+    private double tokens;
+    private long lastNanos;
+
+    TokenBucket(double ratePerSecond, double burst, long nowNanos) {
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastNanos = nowNanos;
+    }
+
+    // Takes a token if one is available
+    synchronized boolean tryAcquire(long nowNanos) {
+        refill(nowNanos);
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    // Nanoseconds until the next token is available (0 if one is available now)
+    synchronized long nanosUntilAvailable(long nowNanos) {
+        refill(nowNanos);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / ratePerNano);
+    }
+
+    // True when the bucket has refilled completely, i.e. nothing used it for a while
+    synchronized boolean isFull(long nowNanos) {
+        refill(nowNanos);
+        return tokens >= burst;
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = nowNanos - lastNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * ratePerNano);
+            lastNanos = nowNanos;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Binary protocol v2, negotiated per connection in the handshake. A v2 client sends
+// writeUTF(hello(name, options)) as its first frame instead of writeUTF(name); the server answers
+// with a HELLO frame listing the options it accepted, and both directions then use
+//
+//   [type: 1 byte][seq: varint][length: varint][payload: length bytes]
+//
+// Varints are unsigned LEB128 (7 bits per byte, low group first). Payloads are standard UTF-8;
+// a CHAT payload is [sender length: varint][sender][text], with an empty sender from clients.
+// seq is the sender's message number. The server numbers its broadcasts from one counter and
+// sends HELLO and the notices meant for one client only with seq 0.
+// With the "deflate" option, a type byte with the COMPRESSED bit set carries
+// [raw length: varint][raw DEFLATE of the payload] instead (see Compression).
+// A "since=<seq>" option asks for the journaled messages after that seq (see MessageJournal),
+// and "resume=<token>" takes over the session named in an earlier HELLO (see SessionRegistry).
+// Clients that send a plain name stay on the legacy writeUTF format
+public final class WireProtocol {
+
+    public static final int VERSION = 2;
+
+    // Start of the first frame of a v2 client; a NUL can never start a name typed into Client1
+    public static final String HELLO_MAGIC = "\u0000CHATv2";
+
+    // Server -> client: handshake accepted, payload is the protocol version
+    public static final byte HELLO = 1;
+    // Both directions: a chat line
+    public static final byte CHAT = 2;
+    // Server -> client: a notice from the server
+    public static final byte SYSTEM = 3;
+    // Server -> client: payload is the name of a client that joined
+    public static final byte JOIN = 4;
+    // Server -> client: payload is the name of a client that left
+    public static final byte LEAVE = 5;
+    // Client -> server: the client is leaving (replaces the legacy "exit" text command)
+    public static final byte EXIT = 6;
+    // Client -> server: move to the room named by the payload (created if nobody is in it)
+    public static final byte ROOM_JOIN = 7;
+    // Client -> server: go back to the lobby
+    public static final byte ROOM_LEAVE = 8;
+    // Client -> server: ask for the room list (answered with a SYSTEM notice)
+    public static final byte ROOM_LIST = 9;
+    // Client -> server: payload is the highest seq received (kept with the session for a resume)
+    public static final byte ACK = 10;
+    // Server -> client, instead of HELLO: the connection was refused, payload is the reason
+    public static final byte REJECT = 11;
+    // Server -> client: the server is restarting; payload is how many milliseconds to wait before
+    // reconnecting (and resuming the session). The server closes the connection after this frame
+    public static final byte RESTART = 12;
+
+    // Flag on the type byte: the payload is compressed
+    public static final byte COMPRESSED = (byte) 0x80;
+
+    private WireProtocol() {
+    }
+
+    // Builds a v2 client's first frame: the magic, ";"-separated options, NUL, then the name
+    public static String hello(String name, String... options) {
+        StringBuilder hello = new StringBuilder(HELLO_MAGIC);
+        for (String option : options) {
+            hello.append(';').append(option);
+        }
+        return hello.append('\u0000').append(name).toString();
+    }
+
+    // Returns true when the first frame announces a v2 client
+    public static boolean isHello(String first) {
+        return first.startsWith(HELLO_MAGIC) && first.indexOf('\u0000', HELLO_MAGIC.length()) >= 0;
+    }
+
+    // The client name carried by a hello
+    public static String helloName(String hello) {
+        return hello.substring(hello.indexOf('\u0000', HELLO_MAGIC.length()) + 1);
+    }
+
+    // True when a hello (or the server's HELLO reply payload) lists the option
+    public static boolean hasOption(String hello, String option) {
+        int end = hello.indexOf('\u0000', 1);
+        String options = end < 0 ? hello : hello.substring(0, end);
+        for (String part : options.split(";")) {
+            if (part.equals(option)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The value of a "name=value" option in a hello, or null if it is absent
+    public static String optionValue(String hello, String name) {
+        int end = hello.indexOf('\u0000', 1);
+        String options = end < 0 ? hello : hello.substring(0, end);
+        String prefix = name + "=";
+        for (String part : options.split(";")) {
+            if (part.startsWith(prefix)) {
+                return part.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+
+    // Encodes a message as one uncompressed v2 frame (heap buffer)
+    public static ByteBuffer encode(ChatMessage message, long seq) {
+        return encode(message, seq, false, false);
+    }
+
+    // Encodes a message as one v2 frame. With compress, payloads of at least
+    // chat.compression.min.bytes are deflated when that makes them smaller. A direct frame is
+    // meant to be shared by many recipients off-heap (see Frames)
+    public static ByteBuffer encode(ChatMessage message, long seq, boolean compress, boolean direct) {
+        byte type = message.type;
+        byte[] payload = payload(message);
+        int rawLength = payload.length;
+        if (compress && rawLength >= ServerConfig.COMPRESSION_MIN_BYTES) {
+            byte[] deflated = Compression.deflate(payload);
+            if (deflated != null && varintSize(rawLength) + deflated.length < rawLength) {
+                type |= COMPRESSED;
+                payload = deflated;
+            }
+        }
+
+        int length = payload.length + ((type & COMPRESSED) != 0 ? varintSize(rawLength) : 0);
+        int size = 1 + varintSize(seq) + varintSize(length) + length;
+        ByteBuffer frame = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        frame.put(type);
+        putVarint(frame, seq);
+        putVarint(frame, length);
+        if ((type & COMPRESSED) != 0) {
+            putVarint(frame, rawLength);
+        }
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    // The uncompressed payload bytes of a message
+    private static byte[] payload(ChatMessage message) {
+        byte[] text = message.text == null ? new byte[0] : message.text.getBytes(StandardCharsets.UTF_8);
+        if (message.type != CHAT) {
+            return text;
+        }
+        byte[] sender = message.sender == null ? new byte[0] : message.sender.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(varintSize(sender.length) + sender.length + text.length);
+        putVarint(payload, sender.length);
+        payload.put(sender).put(text);
+        return payload.array();
+    }
+
+    // Returns the total size of the next frame, or -1 if its header is not fully buffered
+    public static int frameLength(ByteBuffer in) throws ProtocolException {
+        int pos = in.position() + 1;
+        if (pos > in.limit()) {
+            return -1;
+        }
+        pos = skipVarint(in, pos);
+        if (pos < 0) {
+            return -1;
+        }
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos >= in.limit()) {
+                return -1;
+            }
+            if (shift > 28) {
+                throw new ProtocolException("Malformed frame length");
+            }
+            int b = in.get(pos++);
+            length |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length > ServerConfig.MAX_PAYLOAD_BYTES) {
+            throw new ProtocolException("Frame payload too large: " + length + " bytes");
+        }
+        return pos - in.position() + (int) length;
+    }
+
+    // Decodes one complete frame, or returns null (without consuming) if it is not fully buffered
+    public static ChatMessage decode(ByteBuffer in) throws ProtocolException {
+        return decode(in, true);
+    }
+
+    // Like decode(ByteBuffer), but a compressed frame is a protocol error unless inflate is set
+    // (the peer did not negotiate deflate)
+    public static ChatMessage decode(ByteBuffer in, boolean inflate) throws ProtocolException {
+        int frameLength = frameLength(in);
+        if (frameLength < 0 || in.remaining() < frameLength) {
+            return null;
+        }
+        int end = in.position() + frameLength;
+        byte type = in.get();
+        long seq = getVarint(in);
+        getVarint(in);
+        ByteBuffer payload = in.slice(in.position(), end - in.position());
+        in.position(end);
+        return decode(type, seq, payload, inflate);
+    }
+
+    // Reads one frame from a blocking stream
+    public static ChatMessage read(DataInputStream in) throws IOException {
+        return read(in, true);
+    }
+
+    // Like read(DataInputStream), but a compressed frame is a protocol error unless inflate is set
+    public static ChatMessage read(DataInputStream in, boolean inflate) throws IOException {
+        byte type = in.readByte();
+        long seq = readVarint(in);
+        long length = readVarint(in);
+        if (length < 0) {
+            throw new ProtocolException("Malformed frame length");
+        }
+        if (length > ServerConfig.MAX_PAYLOAD_BYTES) {
+            throw new ProtocolException("Frame payload too large: " + length + " bytes");
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        return decode(type, seq, ByteBuffer.wrap(payload), inflate);
+    }
+
+    private static ChatMessage decode(byte type, long seq, ByteBuffer payload, boolean inflate) throws ProtocolException {
+        if ((type & COMPRESSED) != 0) {
+            if (!inflate) {
+                throw new ProtocolException("Compressed frame without the " + Compression.OPTION + " option");
+            }
+            // A varint of ten bytes can set the sign bit
+            long rawLength = getVarint(payload);
+            if (rawLength < 0) {
+                throw new ProtocolException("Malformed compressed payload length");
+            }
+            if (rawLength > ServerConfig.MAX_PAYLOAD_BYTES) {
+                throw new ProtocolException("Frame payload too large: " + rawLength + " bytes");
+            }
+            byte[] compressed = new byte[payload.remaining()];
+            payload.get(compressed);
+            payload = ByteBuffer.wrap(Compression.inflate(compressed, 0, compressed.length, (int) rawLength));
+            type &= ~COMPRESSED;
+        }
+        String sender = null;
+        if (type == CHAT) {
+            int senderLength = (int) getVarint(payload);
+            if (senderLength < 0 || senderLength > payload.remaining()) {
+                throw new ProtocolException("Malformed chat frame");
+            }
+            sender = senderLength == 0 ? null : utf8(payload, senderLength);
+        }
+        return new ChatMessage(type, seq, sender, utf8(payload, payload.remaining()));
+    }
+
+    // Decodes length bytes of UTF-8 and advances past them
+    private static String utf8(ByteBuffer in, int length) {
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(in.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return value;
+    }
+
+    // Number of bytes the value takes as a varint
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    // Reads a varint the caller already knows is complete
+    static long getVarint(ByteBuffer in) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new ProtocolException("Truncated varint");
+            }
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    // Returns the position after the varint starting at pos, or -1 if it is not fully buffered
+    private static int skipVarint(ByteBuffer in, int pos) throws ProtocolException {
+        for (int i = 0; i < 10; i++, pos++) {
+            if (pos >= in.limit()) {
+                return -1;
+            }
+            if (in.get(pos) >= 0) {
+                return pos + 1;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+}
@@ -0,0 +1,87 @@
+package chat;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Sender-side cost of one broadcast to N clients. Recipients are outbound queues whose drain discards
+// frames, so only the fan-out itself is measured. Add -prof gc for bytes allocated per broadcast.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    static final String MESSAGE = "alice: the quick brown fox jumps over the lazy dog 0123456789";
+
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    private final List<DataOutputStream> streams = new ArrayList<>();
+    private final List<OutboundQueue> queues = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < clients; i++) {
+            streams.add(new DataOutputStream(OutputStream.nullOutputStream()));
+            queues.add(discardingQueue());
+        }
+    }
+
+    // Original path: every recipient runs writeUTF + flush on its own stream
+    @Benchmark
+    public void writeUtfPerClient() throws IOException {
+        for (DataOutputStream out : streams) {
+            out.writeUTF(MESSAGE);
+            out.flush();
+        }
+    }
+
+    // Queued path with a frame encoded per recipient
+    @Benchmark
+    public void encodePerClient() throws IOException {
+        for (OutboundQueue queue : queues) {
+            queue.offer(Frames.encode(MESSAGE));
+        }
+    }
+
+    // Current path: one shared frame enqueued for every recipient
+    @Benchmark
+    public void encodeOnce() throws IOException {
+        ByteBuffer frame = Frames.encode(MESSAGE);
+        for (OutboundQueue queue : queues) {
+            queue.offer(frame);
+        }
+    }
+
+    // A queue whose drain runs inline and discards frames, standing in for a connected client
+    static OutboundQueue discardingQueue() {
+        OutboundQueue[] self = new OutboundQueue[1];
+        self[0] = new OutboundQueue(1024, 1 << 20, OverflowPolicy.DROP_OLDEST, new LongAdder(), Runnable::run, () -> {
+            do {
+                while (self[0].poll() != null) {
+                    // discard
+                }
+            } while (self[0].finishDrain());
+        });
+        return self[0];
+    }
+}
@@ -0,0 +1,243 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// Multi-node check of the cluster on localhost: starts one ChatServer process per node (full mesh,
+// shared random secret), connects a v2 client to each and checks that room presence is seen on
+// every node, that a chat line sent on one node reaches the clients on all the others, that a
+// leave reaches the other nodes, and that a peer with the wrong secret is refused. Prints each
+// step and exits with 1 on the first failure; the nodes' logs are left in the printed directory.
+// Built with the benchmarks (mvn -P jmh package), so it stays out of the server jar:
+//
+//   java -Dcheck.nodes=3 -Dcheck.port=7900 -cp target/benchmarks.jar chat.ClusterCheck
+public class ClusterCheck {
+
+    private static final int NODES = Math.max(2, ServerConfig.intProperty("check.nodes", 3));
+    // Chat ports are port, port + 1, ...; cluster ports start at port + 100
+    private static final int BASE_PORT = ServerConfig.intProperty("check.port", 7900);
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(ServerConfig.intProperty("check.timeout.s", 20));
+    private static final String ROOM = "clustercheck";
+
+    public static void main(String[] args) throws Exception {
+        Path logs = Files.createTempDirectory("chat-cluster");
+        String secret = Base64.getEncoder().encodeToString(new SecureRandom().generateSeed(24));
+        List<Process> nodes = new ArrayList<>();
+        List<Client> clients = new ArrayList<>();
+        boolean passed = false;
+        try {
+            for (int i = 0; i < NODES; i++) {
+                nodes.add(startNode(i, secret, logs));
+            }
+            for (int i = 0; i < NODES; i++) {
+                clients.add(Client.connect(BASE_PORT + i, "check-" + i));
+                clients.get(i).send(new ChatMessage(WireProtocol.ROOM_JOIN, 0, null, ROOM));
+            }
+            step("started " + NODES + " nodes, one client each");
+
+            // Presence: every node's view of the room includes the clients on the other nodes
+            String everyone = "#" + ROOM + " (" + NODES + ")";
+            for (Client client : clients) {
+                if (!client.poll(m -> m.type == WireProtocol.SYSTEM && m.text.contains(everyone),
+                        () -> client.send(new ChatMessage(WireProtocol.ROOM_LIST, 0, null, null)))) {
+                    fail(client.name + " never saw " + everyone);
+                }
+            }
+            step("presence: every node sees " + NODES + " members in #" + ROOM);
+
+            String line = "relay check " + System.nanoTime();
+            clients.get(0).send(ChatMessage.chat(null, line));
+            for (Client client : clients.subList(1, clients.size())) {
+                if (!client.poll(m -> m.type == WireProtocol.CHAT && line.equals(m.text), null)) {
+                    fail(client.name + " did not receive the chat line sent on node 0");
+                }
+            }
+            step("relay: a line sent on node 0 reached every other node");
+
+            Client leaving = clients.get(clients.size() - 1);
+            leaving.send(new ChatMessage(WireProtocol.EXIT, 0, null, null));
+            String remaining = "#" + ROOM + " (" + (NODES - 1) + ")";
+            Client first = clients.get(0);
+            if (!first.poll(m -> m.type == WireProtocol.SYSTEM && m.text.contains(remaining),
+                    () -> first.send(new ChatMessage(WireProtocol.ROOM_LIST, 0, null, null)))) {
+                fail(first.name + " still counts " + leaving.name + " after it left");
+            }
+            step("presence: a client leaving node " + (NODES - 1) + " is gone from node 0's count");
+
+            if (!intruderRefused(BASE_PORT + 100)) {
+                fail("a peer with the wrong secret was not disconnected");
+            }
+            step("auth: a peer with the wrong secret was refused");
+            passed = true;
+        } finally {
+            for (Client client : clients) {
+                client.close();
+            }
+            for (Process node : nodes) {
+                node.destroy();
+            }
+            for (Process node : nodes) {
+                node.waitFor(5, TimeUnit.SECONDS);
+            }
+            System.out.println((passed ? "PASS" : "FAIL") + " (node logs in " + logs + ")");
+        }
+    }
+
+    // Launches node i as a separate JVM on this process's class path
+    private static Process startNode(int i, String secret, Path logs) throws IOException {
+        StringBuilder peers = new StringBuilder();
+        for (int j = 0; j < NODES; j++) {
+            if (j != i) {
+                peers.append(peers.length() == 0 ? "" : ",").append("127.0.0.1:").append(BASE_PORT + 100 + j);
+            }
+        }
+        return new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "-Dchat.port=" + (BASE_PORT + i),
+                "-Dchat.cluster.port=" + (BASE_PORT + 100 + i),
+                "-Dchat.cluster.peers=" + peers,
+                "-Dchat.cluster.node=node-" + i,
+                "-Dchat.cluster.secret=" + secret,
+                ChatServer.class.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(logs.resolve("node-" + i + ".log").toFile())
+                .start();
+    }
+
+    // Answers node's challenge with a proof made from another secret; true if the node hangs up
+    private static boolean intruderRefused(int clusterPort) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", clusterPort)) {
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            in.readUTF();
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF("CHATCLUSTER2 intruder");
+            out.writeUTF(Base64.getEncoder().encodeToString(new byte[32]));
+            out.flush();
+            return in.read() < 0;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            // reset by the node
+            return true;
+        }
+    }
+
+    private static void step(String message) {
+        System.out.println("ok   " + message);
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAIL " + message);
+        throw new IllegalStateException(message);
+    }
+
+    // A minimal v2 client whose received frames are queued by a reader thread
+    private static final class Client {
+        final String name;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final BlockingQueue<ChatMessage> received = new LinkedBlockingQueue<>();
+        private long seq;
+
+        private Client(String name, Socket socket) throws IOException {
+            this.name = name;
+            this.socket = socket;
+            this.out = new DataOutputStream(socket.getOutputStream());
+        }
+
+        // Connects once the node listens, says hello and waits for the HELLO answer
+        static Client connect(int port, String name) throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (true) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                    Client client = new Client(name, socket);
+                    client.out.writeUTF(WireProtocol.hello(name));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    if (WireProtocol.read(in).type != WireProtocol.HELLO) {
+                        throw new IOException("No HELLO from port " + port);
+                    }
+                    client.startReading(in);
+                    return client;
+                } catch (IOException e) {
+                    socket.close();
+                    if (System.currentTimeMillis() > deadline) {
+                        throw e;
+                    }
+                    Thread.sleep(200);
+                }
+            }
+        }
+
+        private void startReading(DataInputStream in) {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        received.add(WireProtocol.read(in));
+                    }
+                } catch (EOFException e) {
+                    // closed
+                } catch (IOException e) {
+                    // closed
+                }
+            }, "check-" + name);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized void send(ChatMessage message) throws IOException {
+            ByteBuffer frame = WireProtocol.encode(message, ++seq);
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            out.flush();
+        }
+
+        // Waits for a matching frame, running retry (if any) every 250 ms meanwhile
+        boolean poll(Predicate<ChatMessage> match, IoAction retry) throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            long nextRetry = 0;
+            while (System.currentTimeMillis() < deadline) {
+                if (retry != null && System.currentTimeMillis() >= nextRetry) {
+                    retry.run();
+                    nextRetry = System.currentTimeMillis() + 250;
+                }
+                ChatMessage message = received.poll(50, TimeUnit.MILLISECONDS);
+                if (message != null && match.test(message)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // exiting anyway
+            }
+        }
+    }
+
+    private interface IoAction {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,82 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// CPU cost of per-message DEFLATE for one broadcast: a frame compressed once and shared by every
+// recipient (what ChatServer does) vs compressing separately for each recipient (what a
+// per-connection compressed stream would cost), against no compression. The wire size of each
+// variant is printed at setup
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final String[] WORDS = {
+        "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "meeting", "tomorrow",
+        "release", "build", "server", "client", "message", "queue", "latency", "p99", "ok", "yes"
+    };
+
+    @Param({"256", "4096", "65536"})
+    public int size;
+
+    @Param({"10", "1000"})
+    public int recipients;
+
+    private ChatMessage message;
+    private ByteBuffer compressedFrame;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        message = ChatMessage.chat("alice", text.substring(0, size));
+        compressedFrame = WireProtocol.encode(message, 1, true, false);
+        System.out.printf("%n%d byte message: %d bytes plain, %d bytes deflated%n", size,
+                WireProtocol.encode(message, 1).remaining(), compressedFrame.remaining());
+    }
+
+    @Benchmark
+    public ByteBuffer uncompressed() {
+        return WireProtocol.encode(message, 1, false, false);
+    }
+
+    @Benchmark
+    public ByteBuffer compressOnce() {
+        return WireProtocol.encode(message, 1, true, false);
+    }
+
+    @Benchmark
+    public ByteBuffer compressPerRecipient() {
+        ByteBuffer last = null;
+        for (int i = 0; i < recipients; i++) {
+            last = WireProtocol.encode(message, 1, true, false);
+        }
+        return last;
+    }
+
+    // Receiver side: inflating and decoding one compressed frame
+    @Benchmark
+    public ChatMessage decodeCompressed() throws IOException {
+        return WireProtocol.decode(compressedFrame.duplicate());
+    }
+}
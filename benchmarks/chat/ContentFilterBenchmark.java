@@ -0,0 +1,64 @@
+package chat;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Compares the old String.matches / toLowerCase().contains checks with SymbolFilter and AutoResponder
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentFilterBenchmark {
+
+    @Param({
+        "hello everyone",
+        "is anybody around tonight to talk about the match",
+        "what time is the meeting tomorrow 10 or 11",
+        "this one has a symbol!"
+    })
+    public String message;
+
+    private final SymbolFilter symbolFilter = new SymbolFilter();
+    private final AutoResponder autoResponder = AutoResponder.defaults();
+
+    // The handler's original per-message checks
+    @Benchmark
+    public String regexAndContains() {
+        if (!message.matches("[a-zA-Z0-9\\s]+")) {
+            return "Special characters are not allowed.";
+        }
+        String msg = message.toLowerCase(Locale.ROOT);
+        if (msg.contains("hi") || msg.contains("hello")) {
+            return "Hello bob!";
+        }
+        if (msg.contains("how are you")) {
+            return "I'm a server, always running!";
+        }
+        if (msg.contains("thanks") || msg.contains("thank you")) {
+            return "You're welcome.";
+        }
+        return null;
+    }
+
+    // Lookup-table filter plus single-pass keyword automaton
+    @Benchmark
+    public String tableAndAutomaton() {
+        String reason = symbolFilter.check(message);
+        if (reason != null) {
+            return reason;
+        }
+        return autoResponder.respond(message, "bob");
+    }
+}
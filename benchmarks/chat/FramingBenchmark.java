@@ -0,0 +1,143 @@
+package chat;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Framing: writeUTF vs the v2 binary protocol in memory, and per-message flush vs batched flush over a loopback socket
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    private static final int BATCH = 64;
+
+    private final String message = BroadcastBenchmark.MESSAGE;
+    private final DataOutputStream nullStream = new DataOutputStream(OutputStream.nullOutputStream());
+    private byte[] encoded;
+    private byte[] encodedV2;
+    private final ChatMessage chat = ChatMessage.chat("alice", message.substring("alice: ".length()));
+
+    private ServerSocket listener;
+    private Socket client;
+    private Socket peer;
+    private Thread drainer;
+    private DataOutputStream socketStream;
+    private DataOutputStream bufferedSocketStream;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(message);
+        encoded = bytes.toByteArray();
+        ByteBuffer v2 = WireProtocol.encode(chat, 1);
+        encodedV2 = new byte[v2.remaining()];
+        v2.get(encodedV2);
+
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        client.setTcpNoDelay(true);
+        peer = listener.accept();
+        drainer = new Thread(() -> discard(peer), "loopback-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        socketStream = new DataOutputStream(client.getOutputStream());
+        bufferedSocketStream = new DataOutputStream(new BufferedOutputStream(client.getOutputStream(), 8192));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        peer.close();
+        listener.close();
+    }
+
+    // Reads and throws away everything the benchmark writes
+    private static void discard(Socket socket) {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = socket.getInputStream()) {
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        } catch (IOException e) {
+            // socket closed at tear-down
+        }
+    }
+
+    @Benchmark
+    public void writeUtf() throws IOException {
+        nullStream.writeUTF(message);
+    }
+
+    @Benchmark
+    public ByteBuffer framesEncode() throws IOException {
+        return Frames.encode(message);
+    }
+
+    @Benchmark
+    public String readUtf() throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+    }
+
+    @Benchmark
+    public String framesDecode() throws IOException {
+        return Frames.decode(ByteBuffer.wrap(encoded));
+    }
+
+    @Benchmark
+    public ByteBuffer v2Encode() {
+        return WireProtocol.encode(chat, 42);
+    }
+
+    @Benchmark
+    public ChatMessage v2Decode() throws IOException {
+        return WireProtocol.decode(ByteBuffer.wrap(encodedV2));
+    }
+
+    // The original sendMessage: writeUTF + flush on the unbuffered socket stream, one syscall per message
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void loopbackFlushEach() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            socketStream.writeUTF(message);
+            socketStream.flush();
+        }
+    }
+
+    // Batched writer: the same messages through a buffer with one flush per batch
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void loopbackBatchedFlush() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            bufferedSocketStream.writeUTF(message);
+        }
+        bufferedSocketStream.flush();
+    }
+}
@@ -0,0 +1,101 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// A headless ChatServer on a free loopback port with N connected clients whose input is read and
+// discarded by one selector thread, so benchmarks can drive the real server code paths
+final class LoopbackServer implements AutoCloseable {
+
+    final ChatServer server;
+    private final LogSink log;
+    private final Selector selector;
+    private final List<SocketChannel> peers = new ArrayList<>();
+    private final Thread drainer;
+    private volatile boolean running = true;
+
+    LoopbackServer(int clients) throws IOException, InterruptedException {
+        log = new LogSink(1 << 16, null);
+        server = new ChatServer(0, log);
+        server.start();
+        selector = Selector.open();
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        for (int i = 0; i < clients; i++) {
+            SocketChannel peer = SocketChannel.open(address);
+            peer.write(Frames.encode("client" + i));
+            peer.configureBlocking(false);
+            peer.register(selector, SelectionKey.OP_READ);
+            peers.add(peer);
+        }
+        drainer = new Thread(this::drain, "loopback-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        // Wait for every handshake so the client list is complete
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (named() < clients) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Only " + named() + " of " + clients + " clients joined");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    // The server-side handler of the named client
+    ServerClient1handler handler(String name) {
+        for (ServerClient1handler client : server.getClients()) {
+            if (name.equals(client.getClientName())) {
+                return client;
+            }
+        }
+        throw new IllegalArgumentException("No client " + name);
+    }
+
+    private int named() {
+        int count = 0;
+        for (ServerClient1handler client : server.getClients()) {
+            if (client.getClientName() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Reads and discards everything the server sends
+    private void drain() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (running) {
+                selector.select(100);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    buffer.clear();
+                    if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                        key.cancel();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            // closed at tear-down
+        }
+    }
+
+    @Override
+    public void close() throws IOException, InterruptedException {
+        server.stop();
+        running = false;
+        drainer.join(1000);
+        for (SocketChannel peer : peers) {
+            peer.close();
+        }
+        selector.close();
+        log.close();
+    }
+}
@@ -0,0 +1,61 @@
+package chat;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The real server paths against a headless ChatServer (NIO mode) with N loopback clients:
+// one inbound message through ServerClient1handler.onMessage (validate, log, broadcast,
+// auto-respond) and a bare ChatServer.broadcast. The benchmark thread enqueues faster than the
+// event loops can write, so queues run full and use the drop-oldest policy; the flood limit is off
+// so the benchmark thread is never paced
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.server.mode=nio", "-Dchat.io.threads=2", "-Dchat.outbound.policy=drop-oldest",
+        "-Dchat.flood.rate=0"})
+public class MessagePathBenchmark {
+
+    @Param({"10", "1000"})
+    public int clients;
+
+    @Param({"hello everyone", "is anybody around tonight to talk about the match"})
+    public String message;
+
+    private LoopbackServer loopback;
+    private ServerClient1handler sender;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        loopback = new LoopbackServer(clients);
+        sender = loopback.handler("client0");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        loopback.close();
+    }
+
+    @Benchmark
+    public boolean onMessage() throws IOException {
+        return sender.onMessage(message);
+    }
+
+    @Benchmark
+    public void broadcast() {
+        loopback.server.broadcast(ChatMessage.chat("bench", BroadcastBenchmark.MESSAGE), sender);
+    }
+}
@@ -0,0 +1,99 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Room fan-out and membership churn with many connections. Finding a room's recipients by scanning
+// every connection costs O(clients); the room index costs O(room size). Joining or leaving a
+// 100k-member copy-on-write list copies the whole list; SubscriberSet copies one segment
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomBenchmark {
+
+    // A connection and the room it is in
+    static final class Member {
+        final int room;
+
+        Member(int room) {
+            this.room = room;
+        }
+    }
+
+    @Param({"100000"})
+    public int clients;
+
+    @Param({"10", "1000"})
+    public int roomSize;
+
+    private final List<Member> everyone = new CopyOnWriteArrayList<>();
+    private final List<SubscriberSet<Member>> rooms = new ArrayList<>();
+    private final SubscriberSet<Member> lobby = new SubscriberSet<>();
+    private final List<Member> lobbyList = new CopyOnWriteArrayList<>();
+    private final Member joiner = new Member(0);
+
+    @Setup
+    public void setup() {
+        List<Member> members = new ArrayList<>();
+        for (int i = 0; i < clients / roomSize; i++) {
+            rooms.add(new SubscriberSet<>());
+        }
+        for (int i = 0; i < clients; i++) {
+            Member member = new Member(i % rooms.size());
+            members.add(member);
+            rooms.get(member.room).add(member);
+            lobby.add(member);
+        }
+        everyone.addAll(members);
+        lobbyList.addAll(members);
+    }
+
+    // Recipients of one room message found by scanning every connection
+    @Benchmark
+    public void flatScan(Blackhole blackhole) {
+        for (Member member : everyone) {
+            if (member.room == 0) {
+                blackhole.consume(member);
+            }
+        }
+    }
+
+    // Recipients of one room message read from the room index
+    @Benchmark
+    public void roomIndex(Blackhole blackhole) {
+        for (Member member : rooms.get(0)) {
+            blackhole.consume(member);
+        }
+    }
+
+    // One client joining and leaving a room holding every connection, as a copy-on-write list
+    @Benchmark
+    public void copyOnWriteJoinLeave() {
+        lobbyList.add(joiner);
+        lobbyList.remove(joiner);
+    }
+
+    // The same join and leave on a SubscriberSet
+    @Benchmark
+    public void subscriberSetJoinLeave() {
+        lobby.add(joiner);
+        lobby.remove(joiner);
+    }
+}
@@ -0,0 +1,207 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Plain TCP against TLS on loopback, with a self-signed EC certificate made by keytool, against
+// a headless NIO ChatServer (SSLEngine on the event loops). connect: TCP connect, TLS handshake
+// (a new session each time, or a resumed one) and the v2 hello round trip. relay: chat messages
+// from one client to another through the server, per message. The clients use blocking sockets
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.server.mode=nio", "-Dchat.io.threads=2", "-Dchat.flood.rate=0",
+        "-Dchat.session.grace.ms=0"})
+public class TlsBenchmark {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    @State(Scope.Thread)
+    public static class Connect {
+
+        // tls invalidates each session so the next connection negotiates a new one
+        @Param({"plain", "tls", "tls-resumed"})
+        public String transport;
+
+        Endpoint endpoint;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException, InterruptedException {
+            endpoint = new Endpoint(!"plain".equals(transport));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException, InterruptedException {
+            endpoint.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Traffic {
+
+        static final int BATCH = 100;
+
+        @Param({"plain", "tls"})
+        public String transport;
+
+        @Param({"64", "4096"})
+        public int size;
+
+        Endpoint endpoint;
+        Socket sender;
+        Socket receiver;
+        DataOutputStream out;
+        DataInputStream in;
+        // BATCH chat frames, written with one flush per invocation
+        byte[] frames;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException, InterruptedException {
+            endpoint = new Endpoint(!"plain".equals(transport));
+            receiver = endpoint.open();
+            in = endpoint.join(receiver, "receiver");
+            sender = endpoint.open();
+            out = new DataOutputStream(new BufferedOutputStream(sender.getOutputStream(), 1 << 16));
+            endpoint.join(sender, "sender");
+
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            ChatMessage message = ChatMessage.chat(null, "x".repeat(size));
+            for (int i = 1; i <= BATCH; i++) {
+                ByteBuffer frame = WireProtocol.encode(message, i);
+                batch.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            }
+            frames = batch.toByteArray();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException, InterruptedException {
+            sender.close();
+            receiver.close();
+            endpoint.close();
+        }
+    }
+
+    @Benchmark
+    public ChatMessage connect(Connect state) throws IOException {
+        try (Socket socket = state.endpoint.open()) {
+            ChatMessage hello = WireProtocol.read(state.endpoint.hello(socket, "bench"));
+            if (socket instanceof SSLSocket && "tls".equals(state.transport)) {
+                ((SSLSocket) socket).getSession().invalidate();
+            }
+            return hello;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Traffic.BATCH)
+    public int relay(Traffic state) throws IOException {
+        state.out.write(state.frames);
+        state.out.flush();
+        int received = 0;
+        while (received < Traffic.BATCH) {
+            if (WireProtocol.read(state.in).type == WireProtocol.CHAT) {
+                received++;
+            }
+        }
+        return received;
+    }
+
+    // A server on a free loopback port, with TLS from a fresh self-signed key store if asked
+    static final class Endpoint implements AutoCloseable {
+
+        private final LogSink log = new LogSink(1 << 16, null);
+        private final Path dir;
+        private final SSLContext client;
+        final ChatServer server;
+
+        Endpoint(boolean tls) throws IOException, InterruptedException {
+            dir = tls ? Files.createTempDirectory("chat-tls") : null;
+            SSLContext serverContext = null;
+            if (tls) {
+                String keyStore = selfSignedKeyStore(dir).toString();
+                serverContext = Tls.serverContext(keyStore, PASSWORD, 20000, 86400);
+                client = Tls.clientContext(keyStore, PASSWORD);
+            } else {
+                client = null;
+            }
+            server = new ChatServer(0, log, serverContext);
+            server.start();
+        }
+
+        // Connects (and for TLS completes the handshake); closing resets the connection, so
+        // thousands of benchmark connections do not pile up in TIME_WAIT
+        Socket open() throws IOException {
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoLinger(true, 0);
+            socket.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+            return client == null ? socket : Tls.clientHandshake(client, socket, "127.0.0.1", server.getLocalPort());
+        }
+
+        // Sends the v2 hello and returns the stream the HELLO answer and everything after it arrive on
+        DataInputStream hello(Socket socket, String name) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(WireProtocol.hello(name));
+            out.flush();
+            return new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        }
+
+        // Says hello and waits for the server's answer
+        DataInputStream join(Socket socket, String name) throws IOException {
+            DataInputStream in = hello(socket, name);
+            WireProtocol.read(in);
+            return in;
+        }
+
+        private static Path selfSignedKeyStore(Path dir) throws IOException, InterruptedException {
+            Path keyStore = dir.resolve("chat.p12");
+            Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                    "-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "2",
+                    "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", new String(PASSWORD),
+                    "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1")
+                    .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            if (keytool.waitFor() != 0) {
+                throw new IOException("keytool failed with exit code " + keytool.exitValue());
+            }
+            return keyStore;
+        }
+
+        @Override
+        public void close() throws IOException, InterruptedException {
+            server.stop();
+            log.close();
+            if (dir != null) {
+                Files.deleteIfExists(dir.resolve("chat.p12"));
+                Files.delete(dir);
+            }
+        }
+    }
+}